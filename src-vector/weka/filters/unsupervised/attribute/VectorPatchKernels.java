@@ -0,0 +1,220 @@
+package weka.filters.unsupervised.attribute;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Implementations of the kernels in PatchKernels that use explicit SIMD instructions through the Vector API.
+ * This class is in a separate source root because it needs the jdk.incubator.vector module to compile; see
+ * PatchKernels for how to build it. The JVM has to be started with --add-modules jdk.incubator.vector for this
+ * class to be used; otherwise PatchKernels.getInstance() falls back to the scalar kernels.
+ */
+class VectorPatchKernels extends PatchKernels {
+
+    /**
+     * The preferred vector shape of the platform.
+     */
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    /**
+     * The preferred vector shape of the platform for integers.
+     */
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+
+    /**
+     * The vector shape for bytes with the same number of lanes as INT_SPECIES, but at least 64 bits wide, which is the
+     * smallest shape there is. With 128-bit vectors it therefore has twice as many lanes as INT_SPECIES.
+     */
+    private static final VectorSpecies<Byte> BYTE_SPECIES = VectorSpecies.of(byte.class,
+            VectorShape.forBitSize(Math.max(64, INT_SPECIES.vectorBitSize() / 4)));
+
+    /**
+     * The number of parts of INT_SPECIES that a vector of BYTE_SPECIES is widened into.
+     */
+    private static final int NUM_INT_PARTS = BYTE_SPECIES.length() / INT_SPECIES.length();
+
+    /**
+     * Returns the name of the implementation.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return "vector (" + SPECIES.length() + " lanes)";
+    }
+
+    /**
+     * Sums a range of an array.
+     *
+     * @param a      the array
+     * @param offset the start of the range
+     * @param length the length of the range
+     * @return the sum
+     */
+    public double sum(double[] a, int offset, int length) {
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (int upper = SPECIES.loopBound(length); i < upper; i += SPECIES.length()) {
+            acc = acc.add(DoubleVector.fromArray(SPECIES, a, offset + i));
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[offset + i];
+        }
+        return sum;
+    }
+
+    /**
+     * Sums the squares of a range of an array.
+     *
+     * @param a      the array
+     * @param offset the start of the range
+     * @param length the length of the range
+     * @return the sum of squares
+     */
+    public double sumOfSquares(double[] a, int offset, int length) {
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (int upper = SPECIES.loopBound(length); i < upper; i += SPECIES.length()) {
+            DoubleVector v = DoubleVector.fromArray(SPECIES, a, offset + i);
+            acc = v.fma(v, acc);
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[offset + i] * a[offset + i];
+        }
+        return sum;
+    }
+
+    /**
+     * Multiplies a range of an array by a factor.
+     *
+     * @param a      the array
+     * @param offset the start of the range
+     * @param length the length of the range
+     * @param factor the factor
+     */
+    public void scale(double[] a, int offset, int length, double factor) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(length); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, offset + i).mul(factor).intoArray(a, offset + i);
+        }
+        for (; i < length; i++) {
+            a[offset + i] *= factor;
+        }
+    }
+
+    /**
+     * Returns the index of the first element in a range of an array with the largest absolute value.
+     *
+     * @param a      the array
+     * @param offset the start of the range
+     * @param length the length of the range
+     * @return the index, relative to the start of the range
+     */
+    public int argMaxAbs(double[] a, int offset, int length) {
+        // Find the largest absolute value
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int i = 0;
+        int upper = SPECIES.loopBound(length);
+        for (; i < upper; i += SPECIES.length()) {
+            acc = acc.max(DoubleVector.fromArray(SPECIES, a, offset + i).abs());
+        }
+        double max = acc.reduceLanes(VectorOperators.MAX);
+        for (; i < length; i++) {
+            max = Math.max(max, Math.abs(a[offset + i]));
+        }
+
+        // Find the first element with that absolute value
+        for (i = 0; i < upper; i += SPECIES.length()) {
+            int lane = DoubleVector.fromArray(SPECIES, a, offset + i).abs().compare(VectorOperators.EQ, max).firstTrue();
+            if (lane < SPECIES.length()) {
+                return i + lane;
+            }
+        }
+        for (; i < length; i++) {
+            if (Math.abs(a[offset + i]) == max) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Calculates the dot product of ranges of two arrays of 8-bit integers.
+     *
+     * @param a       the first array
+     * @param aOffset the start of the range in the first array
+     * @param b       the second array
+     * @param bOffset the start of the range in the second array
+     * @param length  the length of the ranges
+     * @return the dot product
+     */
+    public int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        IntVector acc = IntVector.zero(INT_SPECIES);
+        int i = 0;
+        for (int upper = BYTE_SPECIES.loopBound(length); i < upper; i += BYTE_SPECIES.length()) {
+            ByteVector va = ByteVector.fromArray(BYTE_SPECIES, a, aOffset + i);
+            ByteVector vb = ByteVector.fromArray(BYTE_SPECIES, b, bOffset + i);
+            for (int part = 0; part < NUM_INT_PARTS; part++) {
+                IntVector wa = (IntVector) va.convertShape(VectorOperators.B2I, INT_SPECIES, part);
+                IntVector wb = (IntVector) vb.convertShape(VectorOperators.B2I, INT_SPECIES, part);
+                acc = acc.add(wa.mul(wb));
+            }
+        }
+        int sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    /**
+     * Adds the positive part of a range of an array to a range of another array.
+     *
+     * @param src       the array to add
+     * @param srcOffset the start of the range to add
+     * @param dst       the array to add to
+     * @param dstOffset the start of the range to add to
+     * @param length    the length of the ranges
+     */
+    public void addPositivePart(double[] src, int srcOffset, double[] dst, int dstOffset, int length) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(length); i < upper; i += SPECIES.length()) {
+            DoubleVector v = DoubleVector.fromArray(SPECIES, src, srcOffset + i).max(0.0);
+            DoubleVector.fromArray(SPECIES, dst, dstOffset + i).add(v).intoArray(dst, dstOffset + i);
+        }
+        for (; i < length; i++) {
+            dst[dstOffset + i] += Math.max(0, src[srcOffset + i]);
+        }
+    }
+
+    /**
+     * Normalises the values of a patch stored in a range of an array to mean 0 standard deviation ~1.
+     *
+     * @param a      the array
+     * @param offset the start of the patch
+     * @param length the number of values in the patch
+     */
+    public void normalisePatch(double[] a, int offset, int length) {
+        double mean = sum(a, offset, length) / length;
+
+        // Center the values and sum their squares in the same pass
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (int upper = SPECIES.loopBound(length); i < upper; i += SPECIES.length()) {
+            DoubleVector v = DoubleVector.fromArray(SPECIES, a, offset + i).sub(mean);
+            v.intoArray(a, offset + i);
+            acc = v.fma(v, acc);
+        }
+        double sumOfSquares = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            a[offset + i] -= mean;
+            sumOfSquares += a[offset + i] * a[offset + i];
+        }
+        scale(a, offset, length, 1.0 / Math.sqrt(sumOfSquares / length + 10));
+    }
+}
@@ -6,14 +6,35 @@ import weka.core.*;
 import weka.filters.SimpleBatchFilter;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BinaryOperator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * A filter that can be used to process a collection of images for classification or clustering. It applies
@@ -56,15 +77,175 @@ public class KMeansImageFilter extends SimpleBatchFilter {
     protected int m_poolSize = 2;
 
     /**
-     * The dictionary matrix, with one column per filter (aka atom).
+     * The number of threads to use when training the dictionary.
      */
-    protected Matrix m_D;
+    protected int m_numThreads = 1;
+
+    /**
+     * The number of shards the training patches are split into (0 means one shard per thread). Statistics are
+     * computed for each shard separately and merged in every iteration.
+     */
+    protected int m_numShards = 0;
+
+    /**
+     * The directory to spill the shards of the training patches to, so that only the shards being processed are held
+     * in memory (empty to keep all shards in memory).
+     */
+    protected String m_spillDirectory = "";
+
+    /**
+     * The file to save checkpoints of the dictionary training to (empty for no checkpoints).
+     */
+    protected String m_checkpointFile = "";
+
+    /**
+     * The number of k-means iterations between checkpoints (0 to not checkpoint based on iterations).
+     */
+    protected int m_checkpointIterations = 10;
+
+    /**
+     * The number of seconds between checkpoints (0 to not checkpoint based on time).
+     */
+    protected int m_checkpointSeconds = 0;
+
+    /**
+     * Whether to resume the dictionary training from the checkpoint file if it exists.
+     */
+    protected boolean m_resume = false;
+
+    /**
+     * Whether to skip estimating the memory needed before training.
+     */
+    protected boolean m_skipMemoryCheck = false;
+
+    /**
+     * Whether to switch to strategies that need less memory if the estimated memory needed is not available.
+     */
+    protected boolean m_autoMemory = false;
+
+    /**
+     * The directory to cache the feature vectors of images in (empty for no cache).
+     */
+    protected String m_cacheDirectory = "";
+
+    /**
+     * Whether to process images with a dictionary quantised to 8-bit integers.
+     */
+    protected boolean m_quantise = false;
+
+    /**
+     * The number of images in each batch to also process with the exact dictionary, to measure the error
+     * introduced by quantisation (0 for none, as the exact product costs more than quantisation saves).
+     */
+    protected int m_numDriftImages = 0;
+
+    /**
+     * The quantised dictionary, built from m_D when it is first needed after training or refinement.
+     */
+    protected transient QuantisedDictionary m_quantisedD;
+
+    /**
+     * The packed file to read decoded images from (empty for none).
+     */
+    protected String m_packedFile = "";
+
+    /**
+     * The number of features to project the pooled features onto (0 for no projection).
+     */
+    protected int m_numProjectedFeatures = 0;
+
+    /**
+     * The random projection of the pooled features, which is created again from the seed when needed after
+     * deserialisation.
+     */
+    protected transient SparseRandomProjection m_projection;
+
+    /**
+     * Whether to refine the dictionary with patches sampled from each batch after the first.
+     */
+    protected boolean m_refine = false;
+
+    /**
+     * The number of patches sampled from each batch to refine the dictionary with, or the number of patches per image
+     * for each image if the batch is smaller.
+     */
+    protected int m_numRefinementPatches = 1000;
+
+    /**
+     * The factor the accumulated sums of the dictionary are multiplied by before each refinement with the full number
+     * of refinement patches (smaller samples are decayed proportionally less).
+     */
+    protected double m_refinementDecay = 0.9;
+
+    /**
+     * The number of batches the dictionary has been refined with.
+     */
+    protected int m_numRefinedBatches = 0;
+
+    /**
+     * The shared dataset of the packed file in use, which is looked up again when needed after deserialisation.
+     */
+    protected transient PackedImageDataset m_packedDataset;
+
+    /**
+     * The name of the packed file in use.
+     */
+    protected transient String m_openPackedFile;
+
+    /**
+     * The mean relative error of the features of the quantised dictionary measured in the last batch.
+     */
+    protected double m_quantisationDrift = Double.NaN;
+
+    /**
+     * The dictionary matrix, with one column per filter (aka atom). It is serialised by writeObject() because MTJ
+     * matrices are not serializable.
+     */
+    protected transient Matrix m_D;
+
+    /**
+     * The whitening matrix calculated from the first batch, kept to whiten the patches used to refine the dictionary.
+     * It is serialised by writeObject().
+     */
+    protected transient Matrix m_W;
+
+    /**
+     * The decayed sums of the whitened patches assigned to each atom, weighted by their assignments, with one column
+     * per atom. The atoms are these sums normalised. It is serialised by writeObject().
+     */
+    protected transient Matrix m_atomSums;
 
     /**
      * The height and width of the images.
      */
     protected int m_imgSize;
 
+    /**
+     * The kernels used for the inner loops.
+     */
+    protected static final PatchKernels KERNELS = PatchKernels.getInstance();
+
+    /**
+     * The smallest number of patches in a shard when the number of shards is increased to reduce memory use. Smaller
+     * shards save little memory but add overhead to every k-means iteration.
+     */
+    protected static final int MIN_SHARD_SIZE = 256;
+
+    /**
+     * The pixels of an image, either decoded by ImageIO or stored in a packed file.
+     */
+    protected interface PixelSource {
+
+        /**
+         * Returns a pixel in the default RGB colour model.
+         *
+         * @param x the x coordinate of the pixel
+         * @param y the y coordinate of the pixel
+         * @return the pixel
+         */
+        int getRGB(int x, int y);
+    }
+
     /**
      * The method used to establish the format of the data generated by this filter, as an Instances object.
      *
@@ -78,22 +259,23 @@ public class KMeansImageFilter extends SimpleBatchFilter {
         int imgSize = -1;
         for (int i = 0; i < data.numInstances(); i++) {
             String fileName = data.instance(i).stringValue(0);
-            BufferedImage img = null;
+            Dimension size = null;
             try {
-                img = ImageIO.read(new File(fileName));
+                size = readImageSize(fileName);
             } catch (Exception ex) {
                 System.err.println("Could not load: " + fileName);
             }
-            if (img.getWidth() != img.getHeight()) {
+            if (size.width != size.height) {
                 throw new IllegalArgumentException("Image " + fileName + " is not square.");
             }
             if (imgSize == -1) {
-                imgSize = img.getWidth();
-            } else if (imgSize != img.getWidth()) {
+                imgSize = size.width;
+            } else if (imgSize != size.width) {
                 throw new IllegalArgumentException("Image " + fileName + " has different size.");
             }
         }
         debugPrint("Image size is: " + imgSize);
+        m_imgSize = imgSize;
         if (((imgSize - m_cropSize) % m_stride) != 0) {
             throw new IllegalArgumentException("Image height not compatible with patch size and stride");
         }
@@ -102,7 +284,8 @@ public class KMeansImageFilter extends SimpleBatchFilter {
         }
 
         int nFeatPerFilterAndDimension = (1 + ((imgSize - m_cropSize) / m_stride)) / m_poolSize;
-        int numFeatures = nFeatPerFilterAndDimension * nFeatPerFilterAndDimension * m_K;
+        int numFeatures = (m_numProjectedFeatures > 0) ? m_numProjectedFeatures :
+                nFeatPerFilterAndDimension * nFeatPerFilterAndDimension * m_K;
 
         ArrayList<Attribute> atts = new ArrayList<>(numFeatures + 1);
         for (int i = 0; i < numFeatures; i++) {
@@ -123,148 +306,201 @@ public class KMeansImageFilter extends SimpleBatchFilter {
      *
      * @param data the input data to be filtered, with a string attribute containing the file names of the images
      * @return the filtered data, consisting of feature vectors ready for other machine learning algorithms
+     * @throws Exception if the dictionary could not be trained
      */
-    public Instances process(Instances data) {
+    public Instances process(Instances data) throws Exception {
         // We will need a random number generator
         Random rand = new Random(m_seed);
 
         // Establish number of rows and columns for data matrix X
         int numPatchPixels = m_cropSize * m_cropSize;
         int numPatchValues = numPatchPixels * 3; // Three colour channels
-        int numPatches = m_numPatchesPerImage * data.numInstances();
-
-        // Create constant vectors that we will reuse many times to center the values in each patch
-        Vector oneOverNumPatchValues = constantVector(1.0 / numPatchValues, numPatchValues);
-        Vector allOnesNumPatchValues = constantVector(1.0, numPatchValues);
 
         // Is this the first batch of data passed through the filter (i.e., the filter bank has not been
         // created yet)?
         if (!isFirstBatchDone()) {
-            // Read image patches, normalize patches, and turn them into columns in the matrix X
-            Matrix X = new DenseMatrix(numPatchValues, numPatches);
-            int colIndex = 0;
-            // For each image
-            for (int i = 0; i < data.numInstances(); i++) {
-                String fileName = data.instance(i).stringValue(0);
-                BufferedImage img = null;
-                try {
-                    img = ImageIO.read(new File(fileName));
-                    m_imgSize = img.getWidth();
-                    int xmax = 1 + img.getWidth() - m_cropSize;
-                    int ymax = 1 + img.getHeight() - m_cropSize;
-                    // For the number of patches per image
-                    for (int p = 0; p < m_numPatchesPerImage; p++) {
-                        // Create a patch
-                        BufferedImage patch = img.getSubimage(rand.nextInt(xmax), rand.nextInt(ymax), m_cropSize, m_cropSize);
-                        int index = 0;
-                        Vector vec = new DenseVector(numPatchValues);
-                        // Create a vector of with the r, g and b values for each pixel in the patch
-                        for (int j = 0; j < m_cropSize; j++) {
-                            for (int k = 0; k < m_cropSize; k++) {
-                                int rgb = patch.getRGB(k, j);
-                                int r = (rgb >> 16) & 0xFF;
-                                int g = (rgb >> 8) & 0xFF;
-                                int b = (rgb & 0xFF);
-                                vec.set(index, r);
-                                vec.set(numPatchPixels + index, g);
-                                vec.set(2 * numPatchPixels + index, b);
-                                index++;
+            int numPatchesPerImage = m_numPatchesPerImage;
+            int numPatches = numPatchesPerImage * data.numInstances();
+
+            // Split the patches into shards so that the statistics for each shard can be computed independently
+            int numShards = Math.max(1, Math.min((m_numShards > 0) ? m_numShards : m_numThreads, numPatches));
+            // Assignments of spilled shards are not kept in memory either
+            boolean blockedAssignment = !m_spillDirectory.isEmpty();
+
+            // Check that training and processing will fit into memory, switching to strategies that need
+            // less memory if requested
+            if (!m_skipMemoryCheck) {
+                long availableMemory = availableMemory();
+                MemoryPlan plan = planMemory(data.numInstances(), numPatchValues, numPatches, numShards, blockedAssignment);
+                if (plan.getPeak() > availableMemory) {
+                    // Part of the memory in use may be garbage, so collect it before deciding that memory is short
+                    System.gc();
+                    availableMemory = availableMemory();
+                }
+                if (m_autoMemory && plan.getPeak() > availableMemory) {
+                    // Compute the assignments block by block, using more and smaller blocks while that helps
+                    blockedAssignment = true;
+                    int requestedShards = numShards;
+                    numShards = autoNumShards(data.numInstances(), numPatchValues, numPatches, requestedShards, availableMemory);
+                    plan = planMemory(data.numInstances(), numPatchValues, numPatches, numShards, blockedAssignment);
+
+                    // Sample fewer patches from each image, choosing the number of blocks again for the fewer patches
+                    while (plan.getPeak() > availableMemory && numPatchesPerImage > 1) {
+                        numPatchesPerImage = Math.max(1, numPatchesPerImage / 2);
+                        numPatches = numPatchesPerImage * data.numInstances();
+                        numShards = autoNumShards(data.numInstances(), numPatchValues, numPatches, requestedShards, availableMemory);
+                        plan = planMemory(data.numInstances(), numPatchValues, numPatches, numShards, blockedAssignment);
+                    }
+                    debugPrint("Using " + numShards + " blocks for assignments and " + numPatchesPerImage +
+                            " patches per image to reduce memory use.");
+                }
+                debugPrint("Memory plan:\n" + plan);
+                if (plan.getPeak() > availableMemory) {
+                    throw new IllegalStateException("Not enough memory: an estimated " + MemoryPlan.toMegabytes(plan.getPeak()) +
+                            " is needed but only " + MemoryPlan.toMegabytes(availableMemory) + " is available.\n" + plan);
+                }
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, m_numThreads));
+            try (PatchShards X = new PatchShards(numPatchValues, numPatches, numShards,
+                    m_spillDirectory.isEmpty() ? null : Paths.get(m_spillDirectory))) {
+                // Read image patches, normalize patches, and turn them into columns in the shards of matrix X. The
+                // shards are filled one at a time so that only one of them is in memory if they are spilled.
+                int colIndex = 0;
+                int shard = 0;
+                DenseMatrix currentShard = new DenseMatrix(numPatchValues, X.numColumns(0));
+                // For each image
+                for (int i = 0; i < data.numInstances(); i++) {
+                    String fileName = data.instance(i).stringValue(0);
+                    try {
+                        // Sample patches, decoding only the part of the image that contains them if possible
+                        PixelSource[] patches = samplePatches(fileName, numPatchesPerImage, rand);
+                        // For the number of patches per image
+                        for (PixelSource patch : patches) {
+                            // Find the column for the patch in the current shard of X
+                            while (colIndex == X.getStart(shard + 1)) {
+                                X.set(shard, currentShard);
+                                shard++;
+                                currentShard = new DenseMatrix(numPatchValues, X.numColumns(shard));
                             }
+                            setPatchColumn(patch, currentShard.getData(),
+                                    (colIndex - X.getStart(shard)) * numPatchValues, numPatchPixels, numPatchValues);
+                            colIndex++;
                         }
+                    } catch (IOException e) {
+                        System.err.println("File " + fileName + " could not be read");
+                    }
+                }
+                X.set(shard, currentShard);
+                for (int s = shard + 1; s < numShards; s++) {
+                    X.set(s, new DenseMatrix(numPatchValues, X.numColumns(s)));
+                }
 
-                        // Normalize the values to mean 0 standard deviation ~1
-                        Vector centeredVec = vec.add(-vec.dot(oneOverNumPatchValues), allOnesNumPatchValues);
-                        double norm = centeredVec.norm(Vector.Norm.Two);
-                        Vector normalizedVec = centeredVec.scale(1.0 / Math.sqrt((norm * norm) / vec.size() + 10));
+                // Continue from the last checkpoint if requested and one exists
+                byte[] dataFingerprint = m_checkpointFile.isEmpty() ? null : trainingDataFingerprint(data);
+                TrainingCheckpoint checkpoint = m_resume ? loadCheckpoint(numPatchValues, numPatches, dataFingerprint) : null;
+
+                // Perform whitening, reusing the whitening matrix of the checkpoint if there is one
+                Matrix W = (checkpoint != null) ? checkpoint.getWhiteningMatrix() :
+                        calculateWhiteningMatrix(executor, X, numPatches, numPatchValues);
+                debugPrint("Whitening data.");
+                reduceOnShards(executor, numShards, s -> {
+                    X.set(s, W.mult(X.get(s), new DenseMatrix(W.numRows(), X.numColumns(s))));
+                    return null;
+                }, (a, b) -> null);
+
+                //
+                // MY CODE BELOW
+                //
+
+                int count = 0;
+                double oldSumOfSquaredError = Double.POSITIVE_INFINITY;
+                boolean maybeEmptyCentroids = true;
+                if (checkpoint != null) {
+                    debugPrint("Resuming from checkpoint at iteration " + checkpoint.m_iteration + ".");
+                    // Restore the state of the k-means algorithm
+                    m_D = checkpoint.getDictionary();
+                    count = checkpoint.m_iteration;
+                    oldSumOfSquaredError = checkpoint.m_sumOfSquaredErrors;
+                    maybeEmptyCentroids = checkpoint.m_maybeEmptyCentroids;
+                    rand = checkpoint.m_random;
+                } else {
+                    debugPrint("Initializing dictionary.");
+                    // Initialize centroids
+                    initialiseCentroids(numPatchValues, rand);
+                }
 
-                        // Set a column for X to the vector
-                        for (int r = 0; r < normalizedVec.size(); r++) {
-                            X.set(r, colIndex, normalizedVec.get(r));
-                        }
-                        colIndex++;
-                    }
-                } catch (IOException e) {
-                    System.err.println("File " + fileName + " could not be read");
+                debugPrint("Running spherical k-means.");
+                // Define the shards of matrix S, unless they are computed block by block to save memory
+                Matrix[] S = blockedAssignment ? null : new Matrix[numShards];
+                for (int s = 0; S != null && s < numShards; s++) {
+                    S[s] = new DenseMatrix(m_K, X.numColumns(s));
                 }
-            }
+                int lastCheckpointIteration = count;
+                long lastCheckpointTime = System.currentTimeMillis();
+                Matrix atomSums = null;
+
+                // Iterate K means algorithm
+                do {
+                    // Save a checkpoint if enough iterations or time have passed since the last one
+                    if (!m_checkpointFile.isEmpty() && count > lastCheckpointIteration &&
+                            ((m_checkpointIterations > 0 && count - lastCheckpointIteration >= m_checkpointIterations) ||
+                                    (m_checkpointSeconds > 0 && System.currentTimeMillis() - lastCheckpointTime >= 1000L * m_checkpointSeconds))) {
+                        saveCheckpoint(new TrainingCheckpoint(numPatchValues, numPatches, m_seed, dataFingerprint, W, m_D,
+                                count, oldSumOfSquaredError, maybeEmptyCentroids, rand));
+                        lastCheckpointIteration = count;
+                        lastCheckpointTime = System.currentTimeMillis();
+                    }
 
-            // Perform whitening
-            debugPrint("Calculating mean value for each pixel in X.");
-            Vector mean = X.mult(constantVector(1.0 / numPatches, numPatches), new DenseVector(numPatchValues));
+                    // Calculate the statistics for each shard and merge them
+                    ShardStatistics stats = reduceOnShards(executor, numShards, s ->
+                            calculateShardStatistics(X.get(s), (S != null) ? S[s] : new DenseMatrix(m_K, X.numColumns(s)), numPatchValues),
+                            ShardStatistics::merge);
+                    atomSums = stats.m_dictionaryUpdate;
 
-            debugPrint("Calculating centered version of X and storing it in S.");
-            Matrix S = new DenseMatrix(X);
-            S = (new DenseMatrix(mean)).transBmultAdd(-1.0, new DenseMatrix(constantVector(1.0, numPatches)), S);
+                    // Calculate sum of squared errors
+                    double sumOfSquaredErrors = stats.m_sumOfSquaredErrors;
+                    debugPrint("SSE at iteration " + count + ": " + sumOfSquaredErrors);
 
-            debugPrint("Calculating covariance matrix.");
-            Matrix cov = (new UpperSPDDenseMatrix(numPatchValues)).rank1(1.0 / numPatches, S);
+                    // Check if sum of squared errors has decreased by a significant enough amount to keep going
+                    if ((oldSumOfSquaredError - sumOfSquaredErrors) / oldSumOfSquaredError < 1e-12) {
+                        break;
+                    }
+                    oldSumOfSquaredError = sumOfSquaredErrors;
 
-            debugPrint("Performing eigenvalue decomposition.");
-            SymmDenseEVD evd = null;
-            try {
-                evd = SymmDenseEVD.factorize(cov);
-            } catch (NotConvergedException e) {
-                e.printStackTrace();
-                System.exit(1);
-            }
-            double[] evals = evd.getEigenvalues();
-            Matrix V = evd.getEigenvectors();
-            Matrix E = new UpperSymmDenseMatrix(evals.length);
-            for (int i = 0; i < evals.length; i++) {
-                E.set(i, i, 1.0 / Math.sqrt(evals[i] + 0.1));
-
-            }
-            debugPrint("Whitening data.");
-            X = V.mult(E, new DenseMatrix(V.numRows(), E.numColumns())).transBmult(V, new UpperSymmDenseMatrix(V.numRows())).
-                    mult(X, new DenseMatrix(V.numRows(), X.numColumns()));
-
-            //
-            // MY CODE BELOW
-            //
-
-            debugPrint("Initializing dictionary.");
-            // Initialize centroids
-            initialiseCentroids(numPatchValues, rand);
-
-            debugPrint("Running spherical k-means.");
-            // Define matrix S
-            S = new DenseMatrix(m_K, numPatches);
-            int count = 0;
-            double oldSumOfSquaredError = Double.POSITIVE_INFINITY;
-            boolean maybeEmptyCentroids = true;
-
-            // Iterate K means algorithm
-            do {
-                // Calculate S matrix
-                calculateSMatrix(X, S, numPatches);
-
-                debugPrint("Calculating squared error.");
-                // Calculate sum of squared errors
-                double sumOfSquaredErrors = calculateSumOfSquaredErrors(X, S);
-                debugPrint("SSE at iteration " + count + ": " + sumOfSquaredErrors);
-
-                // Check if sum of squared errors has decreased by a significant enough amount to keep going
-                if ((oldSumOfSquaredError - sumOfSquaredErrors) / oldSumOfSquaredError < 1e-12) {
-                    break;
-                }
-                oldSumOfSquaredError = sumOfSquaredErrors;
+                    // Identify and replace empty patches
+                    if (maybeEmptyCentroids) {
+                        int numEmpty = replaceEmptyPatches(X, stats.m_counts, numPatches, numPatchValues, rand);
+                        if (numEmpty == 0)
+                            maybeEmptyCentroids = false;
+
+                        debugPrint("Number of empty centroids: " + numEmpty);
+                    }
 
-                // Identify and replace empty patches
-                if (maybeEmptyCentroids) {
-                    int numEmpty = replaceEmptyPatches(X, S, numPatches, numPatchValues, rand);
-                    if (numEmpty == 0)
-                        maybeEmptyCentroids = false;
+                    // Optimise dictionary
+                    optimiseDictionary(stats.m_dictionaryUpdate, numPatchValues);
+                    // Limit iterations to 200
+                } while (++count < 200);
 
-                    debugPrint("Number of empty centroids: " + numEmpty);
-                }
+                // Keep what is needed to refine the dictionary with later batches
+                m_W = W;
+                m_atomSums = atomSums;
+                m_numRefinedBatches = 0;
+                m_quantisedD = null;
 
-                // Optimise dictionary
-                optimiseDictionary(X, S, numPatchValues);
-                // Limit iterations to 200
-            } while (++count < 200);
+                // The checkpoint is no longer needed once training has finished
+                if (!m_checkpointFile.isEmpty()) {
+                    Files.deleteIfExists(Paths.get(m_checkpointFile));
+                }
+            } finally {
+                executor.shutdownNow();
+            }
 
             // Save all the patches as images
 //            savePatches(numPatchValues);
+        } else if (m_refine) {
+            // Refine the dictionary with a sample of the patches of this batch
+            refineDictionary(data, numPatchValues, numPatchPixels);
         }
 
         // Start image processing
@@ -274,29 +510,83 @@ public class KMeansImageFilter extends SimpleBatchFilter {
         int numPoolsPerDimension = numPatchesPerDimension / m_poolSize;
         int numPoolsPerImg = numPoolsPerDimension * numPoolsPerDimension;
 
+        // Project the pooled features onto fewer features if requested. Without a projection, the pooled features
+        // are stored directly in the array of the output instance, which has an extra slot for the class.
+        int numPooledFeatures = numPoolsPerImg * m_K;
+        if (m_numProjectedFeatures > 0 && (m_projection == null || m_projection.m_numInputs != numPooledFeatures ||
+                m_projection.m_numOutputs != m_numProjectedFeatures || m_projection.m_seed != m_seed)) {
+            debugPrint("Creating random projection from " + numPooledFeatures + " to " + m_numProjectedFeatures + " features.");
+            m_projection = new SparseRandomProjection(numPooledFeatures, m_numProjectedFeatures, m_seed);
+        }
+        int pooledLength = (m_numProjectedFeatures > 0) ? numPooledFeatures : output.numAttributes();
+        int pooledClassIndex = (m_numProjectedFeatures > 0) ? -1 : output.classIndex();
+
+        // Fingerprint of the dictionary and options, used to look up feature vectors in the cache
+        byte[] fingerprint = m_cacheDirectory.isEmpty() ? null : featureFingerprint();
+
+        // Quantise the dictionary if requested, and measure how far its features drift from the exact ones
+        QuantisedDictionary quantisedD = m_quantise ? quantisedDictionary() : null;
+        int numDriftImages = 0;
+        double sumOfDrift = 0;
+
         for (Instance inst : data) {
             String fileName = inst.stringValue(0);
 
             debugPrint("Calculating image features for " + fileName);
 
-            debugPrint("Extracting patches.");
-            // Extract patches
-            Matrix P = null;
-            try {
-                P = extractPatches(fileName, numPatchValues, numPatchesPerImg, numPoolsPerDimension, numPatchPixels, allOnesNumPatchValues, oneOverNumPatchValues);
-            } catch (IOException e) {
-                System.err.println("File " + fileName + " could not be read");
-                System.exit(0);
+            // Look up the feature vector in the cache
+            Path cacheFile = null;
+            double[] featureVector = null;
+            if (fingerprint != null) {
+                try {
+                    cacheFile = featureCacheFile(fileName, fingerprint);
+                    featureVector = readCachedFeatures(cacheFile, output.numAttributes());
+                } catch (IOException e) {
+                    throw new IOException("File " + fileName + " could not be read", e);
+                }
             }
 
-            debugPrint("Applying feature matrix to patches.");
-            // Calculate feature vectors
-            Matrix featureMatrix = new DenseMatrix(m_K, numPatchesPerImg);
-            m_D.transAmult(P, featureMatrix);
+            if (featureVector == null) {
+                debugPrint("Extracting patches.");
+                // Extract patches
+                Matrix P;
+                try {
+                    P = extractPatches(fileName, numPatchValues, numPatchesPerImg, numPoolsPerDimension, numPatchPixels);
+                } catch (IOException e) {
+                    throw new IOException("File " + fileName + " could not be read", e);
+                }
+
+                debugPrint("Applying feature matrix to patches.");
+                // Calculate feature vectors
+                Matrix featureMatrix = new DenseMatrix(m_K, numPatchesPerImg);
+                if (quantisedD != null) {
+                    quantisedD.transAmult(P, featureMatrix);
+                } else {
+                    m_D.transAmult(P, featureMatrix);
+                }
+
+                debugPrint("Pooling features");
+                // Pool features
+                featureVector = poolFeatures(featureMatrix, pooledLength, numPoolsPerImg);
+
+                // Compare the features of the quantised dictionary with those of the exact dictionary
+                if (quantisedD != null && numDriftImages < m_numDriftImages) {
+                    double[] exactFeatureVector = poolFeatures(m_D.transAmult(P, new DenseMatrix(m_K, numPatchesPerImg)),
+                            pooledLength, numPoolsPerImg);
+                    sumOfDrift += relativeError(featureVector, exactFeatureVector, pooledClassIndex);
+                    numDriftImages++;
+                }
+
+                // Project features
+                if (m_numProjectedFeatures > 0) {
+                    featureVector = m_projection.project(featureVector, output.numAttributes());
+                }
 
-            debugPrint("Pooling features");
-            // Pool features
-            double[] featureVector = poolFeatures(featureMatrix, output.numAttributes(), numPoolsPerImg);
+                // Store the feature vector in the cache
+                if (cacheFile != null) {
+                    writeCachedFeatures(cacheFile, featureVector);
+                }
+            }
 
             // Set class
             featureVector[output.classIndex()] = inst.classValue();
@@ -305,9 +595,54 @@ public class KMeansImageFilter extends SimpleBatchFilter {
             output.add(new DenseInstance(inst.weight(), featureVector));
         }
 
+        if (numDriftImages > 0) {
+            m_quantisationDrift = sumOfDrift / numDriftImages;
+            debugPrint("Mean relative error of quantised features over " + numDriftImages + " images: " + m_quantisationDrift);
+        }
+
         return output;
     }
 
+    /**
+     * Calculates the matrix used to whiten the patches from their mean and covariance matrix.
+     *
+     * @param executor       executor to run the computations for the shards with
+     * @param X              shards of the matrix of patches
+     * @param numPatches     number of patches
+     * @param numPatchValues number of values in a patch
+     * @return the whitening matrix
+     * @throws Exception if the whitening matrix could not be calculated
+     */
+    private Matrix calculateWhiteningMatrix(ExecutorService executor, PatchShards X, int numPatches, int numPatchValues) throws Exception {
+        debugPrint("Calculating mean value for each pixel in X.");
+        Vector mean = reduceOnShards(executor, X.numShards(), s ->
+                X.get(s).mult(constantVector(1.0 / numPatches, X.numColumns(s)), new DenseVector(numPatchValues)), Vector::add);
+
+        debugPrint("Calculating covariance matrix.");
+        Matrix cov = reduceOnShards(executor, X.numShards(), s -> {
+            // Center the shard and add its contribution to the covariance matrix
+            Matrix S = new DenseMatrix(X.get(s));
+            S = (new DenseMatrix(mean)).transBmultAdd(-1.0, new DenseMatrix(constantVector(1.0, S.numColumns())), S);
+            return (new UpperSPDDenseMatrix(numPatchValues)).rank1(1.0 / numPatches, S);
+        }, Matrix::add);
+
+        debugPrint("Performing eigenvalue decomposition.");
+        SymmDenseEVD evd;
+        try {
+            evd = SymmDenseEVD.factorize(cov);
+        } catch (NotConvergedException e) {
+            throw new IllegalStateException("Eigenvalue decomposition of the covariance matrix did not converge.", e);
+        }
+        double[] evals = evd.getEigenvalues();
+        Matrix V = evd.getEigenvectors();
+        Matrix E = new UpperSymmDenseMatrix(evals.length);
+        for (int i = 0; i < evals.length; i++) {
+            E.set(i, i, 1.0 / Math.sqrt(evals[i] + 0.1));
+
+        }
+        return V.mult(E, new DenseMatrix(V.numRows(), E.numColumns())).transBmult(V, new UpperSymmDenseMatrix(V.numRows()));
+    }
+
     /**
      * Initialises centroids in m_D by sampling a normal distribution and normalising the vectors.
      *
@@ -317,22 +652,15 @@ public class KMeansImageFilter extends SimpleBatchFilter {
     private void initialiseCentroids(int numPatchValues, Random rand) {
         // Create random centroids
         m_D = new DenseMatrix(numPatchValues, m_K);
+        double[] dictionary = ((DenseMatrix) m_D).getData();
         for (int c = 0; c < m_K; c++) {
-            Vector centroid = new DenseVector(numPatchValues);
             // Sample normal distribution
             for (int r = 0; r < numPatchValues; r++) {
-                centroid.set(r, rand.nextGaussian());
+                dictionary[c * numPatchValues + r] = rand.nextGaussian();
             }
 
             // Normalise centroid
-            double norm = centroid.norm(Vector.Norm.Two);
-            if (norm != 0)
-                centroid = centroid.scale(1 / norm);
-
-            // Copy values to matrix
-            for (int r = 0; r < numPatchValues; r++) {
-                m_D.set(r, c, centroid.get(r));
-            }
+            KERNELS.normalise(dictionary, c * numPatchValues, numPatchValues);
         }
     }
 
@@ -350,75 +678,82 @@ public class KMeansImageFilter extends SimpleBatchFilter {
 
         debugPrint("Setting appropriate values to zero.");
         // Set values to 0 where needed
+        double[] values = ((DenseMatrix) S).getData();
         for (int c = 0; c < numPatches; c++) {
-            // Set first as max
-            double max = S.get(0, c);
-            int maxIndex = 0;
-            for (int r = 1; r < m_K; r++) {
-                double test = Math.abs(S.get(r, c));
-                // If new max
-                if (test > max) {
-                    // Set old max to 0
-                    S.set(maxIndex, c, 0);
+            int offset = c * m_K;
 
-                    // Store new max
-                    max = test;
-                    maxIndex = r;
+            // The first value is compared by its value and the others by their absolute values
+            int maxIndex = 0;
+            if (m_K > 1) {
+                int index = 1 + KERNELS.argMaxAbs(values, offset + 1, m_K - 1);
+                if (Math.abs(values[offset + index]) > values[offset]) {
+                    maxIndex = index;
                 }
-                // Set to 0 if not new max
-                else {
-                    S.set(r, c, 0);
+            }
+
+            // Keep only the max
+            double max = values[offset + maxIndex];
+            Arrays.fill(values, offset, offset + m_K, 0);
+            values[offset + maxIndex] = max;
+        }
+    }
+
+    /**
+     * Calculates the statistics of a shard of the data points that are needed for an iteration of spherical k-means.
+     *
+     * @param X              shard of the matrix of data points
+     * @param S              matrix to store the assignments of the shard in
+     * @param numPatchValues number of values in a patch
+     * @return the statistics of the shard
+     */
+    private ShardStatistics calculateShardStatistics(Matrix X, Matrix S, int numPatchValues) {
+        // Assign data points to centroids
+        calculateSMatrix(X, S, X.numColumns());
+
+        ShardStatistics stats = new ShardStatistics();
+        stats.m_sumOfSquaredErrors = calculateSumOfSquaredErrors(X, S);
+
+        // Count the patches assigned to each centroid
+        stats.m_counts = new int[m_K];
+        for (int c = 0; c < X.numColumns(); c++) {
+            for (int r = 0; r < m_K; r++) {
+                if (S.get(r, c) != 0) {
+                    stats.m_counts[r]++;
                 }
             }
         }
+
+        // Calculate the contribution of the shard to the new dictionary
+        stats.m_dictionaryUpdate = X.transBmult(S, new DenseMatrix(numPatchValues, m_K));
+        return stats;
     }
 
     /**
      * Replaces all the empty patches in m_D.
      *
-     * @param X              matrix of data points
-     * @param S              matrix assigning data points to closest centroids
+     * @param X              shards of the matrix of data points
+     * @param counts         number of data points assigned to each centroid
      * @param numPatches     number of patches
      * @param numPatchValues number of values in a patch
      * @param rand           random object to use
      * @return the number of patches that were empty
+     * @throws IOException error reading a spilled shard
      */
-    private int replaceEmptyPatches(Matrix X, Matrix S, int numPatches, int numPatchValues, Random rand) {
+    private int replaceEmptyPatches(PatchShards X, int[] counts, int numPatches, int numPatchValues, Random rand) throws IOException {
         int numEmpty = 0;
-        // For each row in S (i.e. centroid)
+        // For each centroid
         for (int r = 0; r < m_K; r++) {
-            boolean empty = true;
-
-            // For each column in S (i.e. patch)
-            for (int c = 0; c < numPatches; c++) {
-                // If that patch is attributes to that centroid
-                if (S.get(r, c) != 0) {
-                    // Centroid is not empty
-                    empty = false;
-                    break;
-                }
-            }
-
             // If centroid is empty
-            if (empty) {
+            if (counts[r] == 0) {
                 numEmpty++;
 
-                Vector centroid = new DenseVector(numPatchValues);
                 // Set centroid to a patch
                 int c = rand.nextInt(numPatches);
-                for (int r2 = 0; r2 < numPatchValues; r2++) {
-                    centroid.set(r2, X.get(r2, c));
-                }
+                double[] dictionary = ((DenseMatrix) m_D).getData();
+                X.getColumn(c, dictionary, r * numPatchValues);
 
                 // Normalise centroid
-                double norm = centroid.norm(Vector.Norm.Two);
-                if (norm != 0)
-                    centroid = centroid.scale(1 / norm);
-
-                // Copy values to matrix
-                for (int r2 = 0; r2 < numPatchValues; r2++) {
-                    m_D.set(r2, r, centroid.get(r2));
-                }
+                KERNELS.normalise(dictionary, r * numPatchValues, numPatchValues);
 
                 // Note: This updated centroid will not be optimised this iteration because centroids have already been assigned
             }
@@ -430,31 +765,297 @@ public class KMeansImageFilter extends SimpleBatchFilter {
     /**
      * Optimise the dictionary m_D.
      *
-     * @param X              matrix of data points
-     * @param S              matrix assigning data points to closest centroids
-     * @param numPatchValues number of values in a patch
+     * @param dictionaryUpdate sum of the data points assigned to each centroid, weighted by their assignments
+     * @param numPatchValues   number of values in a patch
      */
-    private void optimiseDictionary(Matrix X, Matrix S, int numPatchValues) {
+    private void optimiseDictionary(Matrix dictionaryUpdate, int numPatchValues) {
         debugPrint("Updating dictionary.");
         // Calculate new D
-        m_D = X.transBmultAdd(S, m_D);
+        m_D = m_D.add(dictionaryUpdate);
 
         debugPrint("Normalising dictionary.");
         // Normalise new D
+        double[] dictionary = ((DenseMatrix) m_D).getData();
         for (int c = 0; c < m_K; c++) {
-            Vector centroid = new DenseVector(numPatchValues);
-            for (int r = 0; r < numPatchValues; r++) {
-                centroid.set(r, m_D.get(r, c));
+            KERNELS.normalise(dictionary, c * numPatchValues, numPatchValues);
+        }
+    }
+
+    /**
+     * Refines the dictionary with patches sampled from a batch after the first, as one step of mini-batch spherical
+     * k-means: the sampled patches are whitened with the whitening matrix of the first batch and assigned to the
+     * atoms, the sums of the atoms are decayed and the assigned patches are added to them, and the atoms are set to
+     * the normalised sums. The cost is bounded by the number of patches sampled, regardless of the size of the batch.
+     * <p>
+     * A small batch, such as the single image of each call under FilteredClassifier, is sampled with at most the
+     * number of patches per image for each of its images, and the sums are decayed in proportion to the number of
+     * patches sampled, so that a stream of small batches adapts as fast as a stream of full-sized ones.
+     *
+     * @param data           the batch
+     * @param numPatchValues number of values in a patch
+     * @param numPatchPixels number of pixels in a patch
+     * @throws IOException error reading from image file
+     */
+    protected void refineDictionary(Instances data, int numPatchValues, int numPatchPixels) throws IOException {
+        if (m_W == null || m_atomSums == null || data.numInstances() == 0 || m_numRefinementPatches <= 0) {
+            return;
+        }
+        int numSampled = (int) Math.min(m_numRefinementPatches, (long) Math.max(1, m_numPatchesPerImage) * data.numInstances());
+        debugPrint("Refining dictionary with " + numSampled + " patches.");
+        Random rand = new Random(m_seed + m_numRefinedBatches + 1);
+
+        // Choose the image of each patch
+        int[] patchesPerImage = new int[data.numInstances()];
+        for (int p = 0; p < numSampled; p++) {
+            patchesPerImage[rand.nextInt(data.numInstances())]++;
+        }
+
+        // Sample the patches
+        DenseMatrix X = new DenseMatrix(numPatchValues, numSampled);
+        int colIndex = 0;
+        for (int i = 0; i < data.numInstances(); i++) {
+            if (patchesPerImage[i] > 0) {
+                String fileName = data.instance(i).stringValue(0);
+                PixelSource[] patches;
+                try {
+                    patches = samplePatches(fileName, patchesPerImage[i], rand);
+                } catch (IOException e) {
+                    throw new IOException("File " + fileName + " could not be read", e);
+                }
+                for (PixelSource patch : patches) {
+                    setPatchColumn(patch, X.getData(), colIndex * numPatchValues, numPatchPixels, numPatchValues);
+                    colIndex++;
+                }
             }
+        }
 
-            double norm = centroid.norm(Vector.Norm.Two);
-            if (norm != 0)
-                centroid = centroid.scale(1 / norm);
+        // Whiten the patches and assign them to the atoms
+        Matrix whitened = m_W.mult(X, new DenseMatrix(numPatchValues, numSampled));
+        Matrix S = new DenseMatrix(m_K, numSampled);
+        calculateSMatrix(whitened, S, numSampled);
+
+        // Update the decayed sums and the atoms, leaving atoms that have never been assigned a patch unchanged. The
+        // decay is for a full sample, so it is scaled down for smaller ones.
+        m_atomSums.scale(Math.pow(m_refinementDecay, numSampled / (double) m_numRefinementPatches));
+        whitened.transBmultAdd(S, m_atomSums);
+        double[] sums = ((DenseMatrix) m_atomSums).getData();
+        double[] dictionary = ((DenseMatrix) m_D).getData();
+        for (int c = 0; c < m_K; c++) {
+            if (KERNELS.sumOfSquares(sums, c * numPatchValues, numPatchValues) > 0) {
+                System.arraycopy(sums, c * numPatchValues, dictionary, c * numPatchValues, numPatchValues);
+                KERNELS.normalise(dictionary, c * numPatchValues, numPatchValues);
+            }
+        }
+        m_numRefinedBatches++;
+        m_quantisedD = null;
+    }
 
-            for (int r = 0; r < numPatchValues; r++) {
-                m_D.set(r, c, centroid.get(r));
+    /**
+     * Reads the width and height of an image from its header, decoding the whole image only if there is no reader
+     * for its format.
+     *
+     * @param fileName file name of the image
+     * @return the width and height of the image
+     * @throws IOException error reading from image file
+     */
+    protected Dimension readImageSize(String fileName) throws IOException {
+        PackedImageDataset packedDataset = packedDataset();
+        if (packedDataset != null && packedDataset.indexOf(fileName) >= 0) {
+            return new Dimension(packedDataset.getWidth(), packedDataset.getHeight());
+        }
+
+        File file = new File(fileName);
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = (stream == null) ? null : ImageIO.getImageReaders(stream);
+            if (readers != null && readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(stream, true, true);
+                    return new Dimension(reader.getWidth(0), reader.getHeight(0));
+                } finally {
+                    reader.dispose();
+                }
             }
         }
+        BufferedImage img = ImageIO.read(file);
+        return new Dimension(img.getWidth(), img.getHeight());
+    }
+
+    /**
+     * Samples patches at random locations from an image file. The locations are chosen from the size of the image
+     * given in its header, so that only the region containing the patches has to be decoded if the image format
+     * supports it. Otherwise, the whole image is decoded. Images in the packed file are read without decoding.
+     *
+     * @param fileName   file name of image to sample patches from
+     * @param numPatches number of patches to sample
+     * @param rand       random object to use
+     * @return the patches
+     * @throws IOException error reading from image file
+     */
+    protected PixelSource[] samplePatches(String fileName, int numPatches, Random rand) throws IOException {
+        PackedImageDataset packedDataset = packedDataset();
+        int image = (packedDataset == null) ? -1 : packedDataset.indexOf(fileName);
+        if (image >= 0) {
+            int[] locations = choosePatchLocations(packedDataset.getWidth(), packedDataset.getHeight(), numPatches, rand);
+            PixelSource[] patches = new PixelSource[numPatches];
+            for (int p = 0; p < numPatches; p++) {
+                int x = locations[2 * p];
+                int y = locations[2 * p + 1];
+                patches[p] = (k, j) -> packedDataset.getRGB(image, x + k, y + j);
+            }
+            return patches;
+        }
+
+        File file = new File(fileName);
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = (stream == null) ? null : ImageIO.getImageReaders(stream);
+            if (readers != null && readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(stream, true, true);
+                    int[] locations = choosePatchLocations(reader.getWidth(0), reader.getHeight(0), numPatches, rand);
+
+                    // Find the bounding box of the patches
+                    Rectangle region = new Rectangle(locations[0], locations[1], m_cropSize, m_cropSize);
+                    for (int p = 1; p < numPatches; p++) {
+                        region.add(new Rectangle(locations[2 * p], locations[2 * p + 1], m_cropSize, m_cropSize));
+                    }
+
+                    BufferedImage img = null;
+                    try {
+                        ImageReadParam param = reader.getDefaultReadParam();
+                        param.setSourceRegion(region);
+                        img = reader.read(0, param);
+                    } catch (IOException | RuntimeException e) {
+                        debugPrint("Could not decode region of " + fileName + ", decoding the whole image.");
+                    }
+                    if (img == null || img.getWidth() != region.width || img.getHeight() != region.height) {
+                        img = ImageIO.read(file);
+                        if (img == null) {
+                            throw new IOException("Unsupported image format");
+                        }
+                        region.setLocation(0, 0);
+                    }
+                    return cropPatches(img, locations, region.x, region.y);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+
+        // Fall back to decoding the whole image
+        BufferedImage img = ImageIO.read(file);
+        if (img == null) {
+            throw new IOException("Unsupported image format");
+        }
+        return cropPatches(img, choosePatchLocations(img.getWidth(), img.getHeight(), numPatches, rand), 0, 0);
+    }
+
+    /**
+     * Chooses random locations for patches in an image.
+     *
+     * @param width      width of the image
+     * @param height     height of the image
+     * @param numPatches number of patches
+     * @param rand       random object to use
+     * @return the x and y coordinates of the top left corner of each patch, one after the other
+     */
+    private int[] choosePatchLocations(int width, int height, int numPatches, Random rand) {
+        int xmax = 1 + width - m_cropSize;
+        int ymax = 1 + height - m_cropSize;
+        int[] locations = new int[2 * numPatches];
+        for (int p = 0; p < numPatches; p++) {
+            locations[2 * p] = rand.nextInt(xmax);
+            locations[2 * p + 1] = rand.nextInt(ymax);
+        }
+        return locations;
+    }
+
+    /**
+     * Crops patches from (a region of) an image.
+     *
+     * @param img       the image, or the region of the image containing the patches
+     * @param locations the x and y coordinates of the top left corner of each patch in the whole image
+     * @param originX   the x coordinate of the region in the whole image
+     * @param originY   the y coordinate of the region in the whole image
+     * @return the patches
+     */
+    private PixelSource[] cropPatches(BufferedImage img, int[] locations, int originX, int originY) {
+        PixelSource[] patches = new PixelSource[locations.length / 2];
+        for (int p = 0; p < patches.length; p++) {
+            patches[p] = img.getSubimage(locations[2 * p] - originX, locations[2 * p + 1] - originY, m_cropSize, m_cropSize)::getRGB;
+        }
+        return patches;
+    }
+
+    /**
+     * Sets a column of a patch matrix to the r, g and b values of each pixel in a patch, normalised to mean 0
+     * standard deviation ~1.
+     *
+     * @param patch          the patch
+     * @param values         the values of the patch matrix
+     * @param offset         the start of the column
+     * @param numPatchPixels number of pixels in a patch
+     * @param numPatchValues number of values in a patch
+     */
+    private void setPatchColumn(PixelSource patch, double[] values, int offset, int numPatchPixels, int numPatchValues) {
+        int index = offset;
+        for (int j = 0; j < m_cropSize; j++) {
+            for (int k = 0; k < m_cropSize; k++) {
+                int rgb = patch.getRGB(k, j);
+                int r = (rgb >> 16) & 0xFF;
+                int g = (rgb >> 8) & 0xFF;
+                int b = (rgb & 0xFF);
+                values[index] = r;
+                values[numPatchPixels + index] = g;
+                values[2 * numPatchPixels + index] = b;
+                index++;
+            }
+        }
+
+        // Normalize the values to mean 0 standard deviation ~1
+        KERNELS.normalisePatch(values, offset, numPatchValues);
+    }
+
+    /**
+     * Returns the pixels of an image, from the packed file if it contains the image and decoded from the image file
+     * otherwise.
+     *
+     * @param fileName file name of the image
+     * @return the pixels of the image
+     * @throws IOException error reading from image file
+     */
+    protected PixelSource readPixels(String fileName) throws IOException {
+        PackedImageDataset packedDataset = packedDataset();
+        int image = (packedDataset == null) ? -1 : packedDataset.indexOf(fileName);
+        if (image >= 0) {
+            return (x, y) -> packedDataset.getRGB(image, x, y);
+        }
+
+        BufferedImage img = ImageIO.read(new File(fileName));
+        if (img == null) {
+            throw new IOException("Unsupported image format");
+        }
+        return img::getRGB;
+    }
+
+    /**
+     * Returns the packed file to read decoded images from. The file is mapped once and shared by all copies of the
+     * filter, so copies made by Filter.makeCopy() do not map it again.
+     *
+     * @return the packed file, or null if none is used
+     * @throws IOException error opening the packed file
+     */
+    protected PackedImageDataset packedDataset() throws IOException {
+        if (m_packedFile.isEmpty()) {
+            return null;
+        }
+        if (m_packedDataset == null || !m_packedFile.equals(m_openPackedFile)) {
+            m_packedDataset = PackedImageDataset.getShared(Paths.get(m_packedFile));
+            m_openPackedFile = m_packedFile;
+            debugPrint("Using packed file with " + m_packedDataset.numImages() + " images.");
+        }
+        return m_packedDataset;
     }
 
     /**
@@ -465,15 +1066,14 @@ public class KMeansImageFilter extends SimpleBatchFilter {
      * @param numPatchesPerImg      number of patches that will be extracted from each image
      * @param numPoolsPerDimension  number of pools per dimension
      * @param numPatchPixels        number of pixels in a patch
-     * @param allOnesNumPatchValues vector full of ones
-     * @param oneOverNumPatchValues vector full of one over the number of patch values
      * @return matrix of extracted patches ordered by pools
      * @throws IOException error reading from image file
      */
-    private Matrix extractPatches(String fileName, int numPatchValues, int numPatchesPerImg, int numPoolsPerDimension, int numPatchPixels, Vector allOnesNumPatchValues, Vector oneOverNumPatchValues) throws IOException {
-        BufferedImage img = ImageIO.read(new File(fileName));
+    private Matrix extractPatches(String fileName, int numPatchValues, int numPatchesPerImg, int numPoolsPerDimension, int numPatchPixels) throws IOException {
+        PixelSource img = readPixels(fileName);
 
-        Matrix P = new DenseMatrix(numPatchValues, numPatchesPerImg);
+        DenseMatrix P = new DenseMatrix(numPatchValues, numPatchesPerImg);
+        double[] values = P.getData();
 
         int colIndex = 0;
         // For each pool
@@ -487,71 +1087,406 @@ public class KMeansImageFilter extends SimpleBatchFilter {
                         int pixelX = globalPatchX * m_stride;
                         int pixelY = globalPatchY * m_stride;
 
-                        // Get patch
-                        BufferedImage patch = img.getSubimage(pixelX, pixelY, m_cropSize, m_cropSize);
-
-                        // Put patch values in vector
-                        int index = 0;
-                        Vector patchVec = new DenseVector(numPatchValues);
+                        // Put patch values in a column of the patch matrix
+                        int offset = colIndex * numPatchValues;
+                        int index = offset;
                         for (int j = 0; j < m_cropSize; j++) {
                             for (int k = 0; k < m_cropSize; k++) {
-                                int rgb = patch.getRGB(k, j);
+                                int rgb = img.getRGB(pixelX + k, pixelY + j);
                                 int red = (rgb >> 16) & 0xFF;
                                 int green = (rgb >> 8) & 0xFF;
                                 int blue = (rgb & 0xFF);
-                                patchVec.set(index, red);
-                                patchVec.set(numPatchPixels + index, green);
-                                patchVec.set(2 * numPatchPixels + index, blue);
+                                values[index] = red;
+                                values[numPatchPixels + index] = green;
+                                values[2 * numPatchPixels + index] = blue;
                                 index++;
                             }
                         }
 
                         // Normalize the values to mean 0 standard deviation ~1
-                        Vector centeredVec = patchVec.add(-patchVec.dot(oneOverNumPatchValues), allOnesNumPatchValues);
-                        double norm = centeredVec.norm(Vector.Norm.Two);
-                        Vector normalizedVec = centeredVec.scale(1.0 / Math.sqrt((norm * norm) / patchVec.size() + 10));
+                        KERNELS.normalisePatch(values, offset, numPatchValues);
+                        colIndex++;
+                    }
+                }
+            }
+        }
+
+        return P;
+    }
+
+    /**
+     * Pool features together.
+     *
+     * @param unpooledFeatureMatrix matrix of unpooled features
+     * @param numFeatures           number of features in result
+     * @param numPoolsPerImg        number of pools in image
+     * @return array of features
+     */
+    private double[] poolFeatures(Matrix unpooledFeatureMatrix, int numFeatures, int numPoolsPerImg) {
+        // Setup feature vector
+        double[] featureVector = new double[numFeatures];
+        double[] values = ((DenseMatrix) unpooledFeatureMatrix).getData();
+
+        // Pool vales together
+        int colIndex = 0;
+        // For each pool
+        for (int i = 0; i < numPoolsPerImg; i++) {
+            // For each patch in the pool
+            for (int j = 0; j < m_poolSize * m_poolSize; j++) {
+                // Add the value in each row to the final feature vector
+                KERNELS.addPositivePart(values, colIndex * m_K, featureVector, i * m_K, m_K);
+
+                colIndex++;
+            }
+        }
+
+        return featureVector;
+    }
+
+    /**
+     * Estimates the memory needed by the largest allocations made in each phase of training the dictionary and
+     * processing the images.
+     *
+     * @param numInstances      number of images
+     * @param numPatchValues    number of values in a patch
+     * @param numPatches        number of patches used for training
+     * @param numShards         number of shards the patches are split into
+     * @param blockedAssignment whether the assignments are computed block by block instead of being kept for all patches
+     * @return the estimate
+     */
+    protected MemoryPlan planMemory(int numInstances, int numPatchValues, int numPatches, int numShards, boolean blockedAssignment) {
+        long concurrency = Math.max(1, Math.min(m_numThreads, numShards));
+        long shardSize = (numPatches + numShards - 1) / numShards;
+        long numPatchesPerDimension = 1 + ((m_imgSize - m_cropSize) / m_stride);
+        long numPatchesPerImg = numPatchesPerDimension * numPatchesPerDimension;
+        long numFeatures = getOutputFormat().numAttributes();
+        long numPoolsPerDimension = numPatchesPerDimension / m_poolSize;
+        long numPooledFeatures = numPoolsPerDimension * numPoolsPerDimension * m_K;
+
+        long shardCopies = 8L * numPatchValues * shardSize * concurrency;
+        String patchesName = m_spillDirectory.isEmpty() ? "Patch matrix X" : "Shards of X read from the spill directory";
+        long patchesSize = m_spillDirectory.isEmpty() ? 8L * numPatchValues * numPatches : shardCopies;
+
+        MemoryPlan plan = new MemoryPlan();
+        plan.addPhase("Whitening");
+        plan.add(patchesName, patchesSize);
+        plan.add("Centered or whitened copies of shards of X", shardCopies);
+        plan.add("Covariance and whitening matrices", 8L * numPatchValues * numPatchValues * (4 + concurrency));
+
+        plan.addPhase("K-means");
+        plan.add(patchesName, patchesSize);
+        plan.add("Whitening matrix", 8L * numPatchValues * numPatchValues);
+        plan.add(blockedAssignment ? "Assignment matrix S (blocked)" : "Assignment matrix S",
+                8L * m_K * (blockedAssignment ? shardSize * concurrency : numPatches));
+        plan.add("Products D*S for the sum of squared errors", shardCopies);
+        plan.add("Dictionary and partial updates", 8L * numPatchValues * m_K * (2 + concurrency));
+
+        plan.addPhase("Processing");
+        plan.add("Dictionary", 8L * numPatchValues * m_K);
+        if (m_quantise) {
+            plan.add("Quantised dictionary and patches", (long) numPatchValues * (m_K + numPatchesPerImg) + 8L * (m_K + numPatchesPerImg));
+        }
+        plan.add("Patches and feature map of an image", 8L * (numPatchValues + m_K) * numPatchesPerImg);
+        if (m_refine) {
+            plan.add("Refinement patches and assignments", 8L * (2L * numPatchValues + m_K) * m_numRefinementPatches);
+        }
+        if (m_numProjectedFeatures > 0) {
+            plan.add("Random projection", 12L * (long) Math.ceil(Math.sqrt(numPooledFeatures)) * m_numProjectedFeatures
+                    + 4L * numPooledFeatures + 8L * (numPooledFeatures + numFeatures));
+        }
+        plan.add("Output instances", (8L * numFeatures + 64) * numInstances);
+        return plan;
+    }
+
+    /**
+     * Chooses the number of shards of the training patches when memory use is reduced automatically, with the
+     * assignments computed block by block. Starting from the requested number of shards, the number is doubled while
+     * the estimated peak does not fit, doubling lowers it by at least a tenth, and shards keep at least
+     * MIN_SHARD_SIZE patches.
+     *
+     * @param numInstances    number of images
+     * @param numPatchValues  number of values in a patch
+     * @param numPatches      number of patches used for training
+     * @param numShards       requested number of shards
+     * @param availableMemory memory available in bytes
+     * @return the number of shards to use
+     */
+    protected int autoNumShards(int numInstances, int numPatchValues, int numPatches, int numShards, long availableMemory) {
+        numShards = Math.max(1, Math.min(numShards, numPatches));
+        MemoryPlan plan = planMemory(numInstances, numPatchValues, numPatches, numShards, true);
+        while (plan.getPeak() > availableMemory && 2L * numShards * MIN_SHARD_SIZE <= numPatches) {
+            MemoryPlan next = planMemory(numInstances, numPatchValues, numPatches, 2 * numShards, true);
+            if (next.getPeak() > 0.9 * plan.getPeak()) {
+                break;
+            }
+            numShards *= 2;
+            plan = next;
+        }
+        return numShards;
+    }
+
+    /**
+     * Returns the amount of memory that can still be allocated on the heap.
+     *
+     * @return the available memory in bytes
+     */
+    protected long availableMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * Saves a checkpoint of the dictionary training to the checkpoint file. The checkpoint is first written to a
+     * temporary file so that an interrupted save does not destroy the previous checkpoint.
+     *
+     * @param checkpoint the checkpoint to save
+     * @throws IOException error writing to the checkpoint file
+     */
+    protected void saveCheckpoint(TrainingCheckpoint checkpoint) throws IOException {
+        debugPrint("Saving checkpoint at iteration " + checkpoint.m_iteration + ".");
+        Path file = Paths.get(m_checkpointFile);
+        Path tempFile = Paths.get(m_checkpointFile + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeObject(checkpoint);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the checkpoint of the dictionary training from the checkpoint file.
+     *
+     * @param numPatchValues  number of values in a patch
+     * @param numPatches      number of patches
+     * @param dataFingerprint fingerprint of the training images and the number of patches per image
+     * @return the checkpoint, or null if there is no checkpoint file
+     * @throws Exception error reading the checkpoint file or the checkpoint does not match the current options
+     */
+    protected TrainingCheckpoint loadCheckpoint(int numPatchValues, int numPatches, byte[] dataFingerprint) throws Exception {
+        if (m_checkpointFile.isEmpty() || !Files.exists(Paths.get(m_checkpointFile))) {
+            debugPrint("No checkpoint to resume from.");
+            return null;
+        }
+
+        TrainingCheckpoint checkpoint;
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(m_checkpointFile))))) {
+            checkpoint = (TrainingCheckpoint) in.readObject();
+        }
+        if (checkpoint.m_numPatchValues != numPatchValues || checkpoint.m_K != m_K ||
+                checkpoint.m_numPatches != numPatches || checkpoint.m_seed != m_seed ||
+                !Arrays.equals(checkpoint.m_dataFingerprint, dataFingerprint)) {
+            throw new IllegalArgumentException("Checkpoint " + m_checkpointFile + " does not match the current options and data.");
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Calculates a fingerprint of the training data a checkpoint belongs to: the file names of the images, in order,
+     * and the number of patches sampled from each image.
+     *
+     * @param data the training data
+     * @return the fingerprint
+     * @throws NoSuchAlgorithmException if SHA-256 is not available
+     */
+    protected byte[] trainingDataFingerprint(Instances data) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(ByteBuffer.allocate(8).putInt(m_numPatchesPerImage).putInt(data.numInstances()).array());
+        for (Instance inst : data) {
+            byte[] fileName = inst.stringValue(0).getBytes(StandardCharsets.UTF_8);
+            digest.update(ByteBuffer.allocate(4).putInt(fileName.length).array());
+            digest.update(fileName);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Runs a task for each shard using the given executor and merges the results. The shards are split into one
+     * contiguous group per thread, so that at most one unmerged result per thread is held in memory.
+     *
+     * @param executor  the executor to run the tasks with
+     * @param numShards the number of shards
+     * @param task      the task to run for each shard
+     * @param merge     the function used to merge the results of two shards
+     * @param <T>       the type of the result of the task
+     * @return the merged result, merged in order of the shards
+     * @throws Exception if the task failed for any of the shards
+     */
+    protected <T> T reduceOnShards(ExecutorService executor, int numShards, ShardTask<T> task, BinaryOperator<T> merge) throws Exception {
+        int numGroups = Math.max(1, Math.min(m_numThreads, numShards));
+        List<Future<T>> futures = new ArrayList<>(numGroups);
+        for (int g = 0; g < numGroups; g++) {
+            int first = (int) ((long) g * numShards / numGroups);
+            int last = (int) ((long) (g + 1) * numShards / numGroups);
+            futures.add(executor.submit(() -> {
+                T result = task.run(first);
+                for (int s = first + 1; s < last; s++) {
+                    result = merge.apply(result, task.run(s));
+                }
+                return result;
+            }));
+        }
+
+        T result = null;
+        try {
+            for (int g = 0; g < numGroups; g++) {
+                result = (g == 0) ? futures.get(g).get() : merge.apply(result, futures.get(g).get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Calculates a fingerprint of the dictionary and the options that determine the feature vector of an image.
+     *
+     * @return the fingerprint
+     * @throws NoSuchAlgorithmException if SHA-256 is not available
+     */
+    protected byte[] featureFingerprint() throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        ByteBuffer buffer = ByteBuffer.allocate(8 * Math.max(6, m_D.numRows()));
+        buffer.putInt(m_K).putInt(m_cropSize).putInt(m_stride).putInt(m_poolSize).putInt(m_imgSize).putInt(m_quantise ? 1 : 0);
+        if (m_numProjectedFeatures > 0) {
+            buffer.putInt(m_numProjectedFeatures).putInt(m_seed);
+        }
+        digest.update(buffer.array(), 0, buffer.position());
+        for (int c = 0; c < m_D.numColumns(); c++) {
+            buffer.clear();
+            for (int r = 0; r < m_D.numRows(); r++) {
+                buffer.putDouble(m_D.get(r, c));
+            }
+            digest.update(buffer.array(), 0, buffer.position());
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Returns the file the feature vector of an image is cached in, which is named after a hash of the content of
+     * the image (its pixels if it is in the packed file) and the fingerprint of the dictionary and options.
+     *
+     * @param fileName    file name of the image
+     * @param fingerprint fingerprint of the dictionary and options
+     * @return the cache file
+     * @throws IOException error reading from image file
+     */
+    protected Path featureCacheFile(String fileName, byte[] fingerprint) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(fingerprint);
+        PackedImageDataset packedDataset = packedDataset();
+        int image = (packedDataset == null) ? -1 : packedDataset.indexOf(fileName);
+        if (image >= 0) {
+            digest.update(packedDataset.getPixels(image));
+        } else {
+            digest.update(Files.readAllBytes(Paths.get(fileName)));
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return Paths.get(m_cacheDirectory, key + ".features.gz");
+    }
+
+    /**
+     * Reads a cached feature vector.
+     *
+     * @param cacheFile   the cache file
+     * @param numFeatures number of features in the feature vector
+     * @return the feature vector, or null if it is not in the cache
+     */
+    protected double[] readCachedFeatures(Path cacheFile, int numFeatures) {
+        if (!Files.exists(cacheFile)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(Files.newInputStream(cacheFile)))) {
+            if (in.readInt() != numFeatures) {
+                return null;
+            }
+            double[] featureVector = new double[numFeatures];
+            for (int i = 0; i < numFeatures; i++) {
+                featureVector[i] = in.readDouble();
+            }
+            debugPrint("Read features from cache.");
+            return featureVector;
+        } catch (IOException e) {
+            debugPrint("Could not read cached features from " + cacheFile);
+            return null;
+        }
+    }
 
-                        // Set a column for patchMatrix to the vector
-                        for (int r = 0; r < normalizedVec.size(); r++) {
-                            P.set(r, colIndex, normalizedVec.get(r));
-                        }
-                        colIndex++;
-                    }
+    /**
+     * Writes a feature vector to the cache. The feature vector is first written to a temporary file so that other
+     * processes never read a partially written feature vector.
+     *
+     * @param cacheFile     the cache file
+     * @param featureVector the feature vector
+     */
+    protected void writeCachedFeatures(Path cacheFile, double[] featureVector) {
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            Path tempFile = Files.createTempFile(cacheFile.getParent(), "features", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile))))) {
+                out.writeInt(featureVector.length);
+                for (double value : featureVector) {
+                    out.writeDouble(value);
                 }
             }
+            Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not write features to cache file " + cacheFile);
         }
-
-        return P;
     }
 
     /**
-     * Pool features together.
+     * Returns the quantised dictionary, quantising m_D if it has not been quantised since it last changed.
      *
-     * @param unpooledFeatureMatrix matrix of unpooled features
-     * @param numFeatures           number of features in result
-     * @param numPoolsPerImg        number of pools in image
-     * @return array of features
+     * @return the quantised dictionary
      */
-    private double[] poolFeatures(Matrix unpooledFeatureMatrix, int numFeatures, int numPoolsPerImg) {
-        // Setup feature vector
-        double[] featureVector = new double[numFeatures];
-
-        // Pool vales together
-        int colIndex = 0;
-        // For each pool
-        for (int i = 0; i < numPoolsPerImg; i++) {
-            // For each patch in the pool
-            for (int j = 0; j < m_poolSize * m_poolSize; j++) {
-                // Add the value in each row to the final feature vector
-                for (int r = 0; r < m_K; r++) {
-                    featureVector[i * m_K + r] += Math.max(0, unpooledFeatureMatrix.get(r, colIndex));
-                }
+    protected QuantisedDictionary quantisedDictionary() {
+        if (m_quantisedD == null) {
+            debugPrint("Quantising dictionary.");
+            m_quantisedD = new QuantisedDictionary(m_D);
+        }
+        return m_quantisedD;
+    }
 
-                colIndex++;
+    /**
+     * Calculates the relative error of a feature vector in the L2 norm, ignoring the class.
+     *
+     * @param featureVector      the approximate feature vector
+     * @param exactFeatureVector the exact feature vector
+     * @param classIndex         the index of the class
+     * @return the relative error
+     */
+    protected static double relativeError(double[] featureVector, double[] exactFeatureVector, int classIndex) {
+        double error = 0;
+        double norm = 0;
+        for (int i = 0; i < featureVector.length; i++) {
+            if (i != classIndex) {
+                double diff = featureVector[i] - exactFeatureVector[i];
+                error += diff * diff;
+                norm += exactFeatureVector[i] * exactFeatureVector[i];
             }
         }
+        return (norm == 0) ? Math.sqrt(error) : Math.sqrt(error / norm);
+    }
 
-        return featureVector;
+    /**
+     * Returns the mean relative error of the features computed with the quantised dictionary, as measured on the
+     * last batch.
+     *
+     * @return the mean relative error, or NaN if it has not been measured
+     */
+    public double quantisationDrift() {
+        return m_quantisationDrift;
     }
 
     /**
@@ -889,6 +1824,966 @@ public class KMeansImageFilter extends SimpleBatchFilter {
         this.m_poolSize = pool;
     }
 
+    @OptionMetadata(
+            displayName = "Number of threads",
+            description = "The number of threads to use when training the dictionary.",
+            displayOrder = 7,
+            commandLineParamName = "threads",
+            commandLineParamSynopsis = "-threads")
+    public int getNumThreads() {
+        return m_numThreads;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.m_numThreads = numThreads;
+    }
+
+    @OptionMetadata(
+            displayName = "Number of shards",
+            description = "The number of shards the training patches are split into (0 = one per thread).",
+            displayOrder = 8,
+            commandLineParamName = "shards",
+            commandLineParamSynopsis = "-shards")
+    public int getNumShards() {
+        return m_numShards;
+    }
+
+    public void setNumShards(int numShards) {
+        this.m_numShards = numShards;
+    }
+
+    @OptionMetadata(
+            displayName = "Spill directory",
+            description = "The directory to spill the shards of the training patches to, so that only the shards being processed are held in memory (empty = keep all shards in memory).",
+            displayOrder = 9,
+            commandLineParamName = "spill",
+            commandLineParamSynopsis = "-spill")
+    public String getSpillDirectory() {
+        return m_spillDirectory;
+    }
+
+    public void setSpillDirectory(String spillDirectory) {
+        this.m_spillDirectory = spillDirectory;
+    }
+
+    @OptionMetadata(
+            displayName = "Checkpoint file",
+            description = "The file to save checkpoints of the dictionary training to (empty = no checkpoints).",
+            displayOrder = 10,
+            commandLineParamName = "checkpoint",
+            commandLineParamSynopsis = "-checkpoint")
+    public String getCheckpointFile() {
+        return m_checkpointFile;
+    }
+
+    public void setCheckpointFile(String checkpointFile) {
+        this.m_checkpointFile = checkpointFile;
+    }
+
+    @OptionMetadata(
+            displayName = "Iterations between checkpoints",
+            description = "The number of k-means iterations between checkpoints (0 = not based on iterations).",
+            displayOrder = 11,
+            commandLineParamName = "checkpointIterations",
+            commandLineParamSynopsis = "-checkpointIterations")
+    public int getCheckpointIterations() {
+        return m_checkpointIterations;
+    }
+
+    public void setCheckpointIterations(int checkpointIterations) {
+        this.m_checkpointIterations = checkpointIterations;
+    }
+
+    @OptionMetadata(
+            displayName = "Seconds between checkpoints",
+            description = "The number of seconds between checkpoints (0 = not based on time).",
+            displayOrder = 12,
+            commandLineParamName = "checkpointSeconds",
+            commandLineParamSynopsis = "-checkpointSeconds")
+    public int getCheckpointSeconds() {
+        return m_checkpointSeconds;
+    }
+
+    public void setCheckpointSeconds(int checkpointSeconds) {
+        this.m_checkpointSeconds = checkpointSeconds;
+    }
+
+    @OptionMetadata(
+            displayName = "Resume from checkpoint",
+            description = "Whether to resume the dictionary training from the checkpoint file if it exists.",
+            displayOrder = 13,
+            commandLineParamName = "resume",
+            commandLineParamSynopsis = "-resume",
+            commandLineParamIsFlag = true)
+    public boolean getResume() {
+        return m_resume;
+    }
+
+    public void setResume(boolean resume) {
+        this.m_resume = resume;
+    }
+
+    @OptionMetadata(
+            displayName = "Skip memory check",
+            description = "Whether to skip estimating the memory needed before training.",
+            displayOrder = 14,
+            commandLineParamName = "skipMemoryCheck",
+            commandLineParamSynopsis = "-skipMemoryCheck",
+            commandLineParamIsFlag = true)
+    public boolean getSkipMemoryCheck() {
+        return m_skipMemoryCheck;
+    }
+
+    public void setSkipMemoryCheck(boolean skipMemoryCheck) {
+        this.m_skipMemoryCheck = skipMemoryCheck;
+    }
+
+    @OptionMetadata(
+            displayName = "Reduce memory automatically",
+            description = "Whether to compute assignments in blocks and sample fewer patches if there is not enough memory.",
+            displayOrder = 15,
+            commandLineParamName = "autoMemory",
+            commandLineParamSynopsis = "-autoMemory",
+            commandLineParamIsFlag = true)
+    public boolean getAutoMemory() {
+        return m_autoMemory;
+    }
+
+    public void setAutoMemory(boolean autoMemory) {
+        this.m_autoMemory = autoMemory;
+    }
+
+    @OptionMetadata(
+            displayName = "Feature cache directory",
+            description = "The directory to cache the feature vectors of images in (empty = no cache).",
+            displayOrder = 16,
+            commandLineParamName = "cache",
+            commandLineParamSynopsis = "-cache")
+    public String getCacheDirectory() {
+        return m_cacheDirectory;
+    }
+
+    public void setCacheDirectory(String cacheDirectory) {
+        this.m_cacheDirectory = cacheDirectory;
+    }
+
+    @OptionMetadata(
+            displayName = "Quantise dictionary",
+            description = "Whether to process images with a dictionary quantised to 8-bit integers.",
+            displayOrder = 17,
+            commandLineParamName = "quantise",
+            commandLineParamSynopsis = "-quantise",
+            commandLineParamIsFlag = true)
+    public boolean getQuantise() {
+        return m_quantise;
+    }
+
+    public void setQuantise(boolean quantise) {
+        this.m_quantise = quantise;
+    }
+
+    @OptionMetadata(
+            displayName = "Number of images to measure quantisation error on",
+            description = "The number of images per batch to also process with the exact dictionary to measure the quantisation error (0 = none).",
+            displayOrder = 18,
+            commandLineParamName = "driftImages",
+            commandLineParamSynopsis = "-driftImages")
+    public int getNumDriftImages() {
+        return m_numDriftImages;
+    }
+
+    public void setNumDriftImages(int numDriftImages) {
+        this.m_numDriftImages = numDriftImages;
+    }
+
+    @OptionMetadata(
+            displayName = "Number of projected features",
+            description = "The number of features to project the pooled features onto with a sparse random projection (0 for no projection).",
+            displayOrder = 20,
+            commandLineParamName = "project",
+            commandLineParamSynopsis = "-project")
+    public int getNumProjectedFeatures() {
+        return m_numProjectedFeatures;
+    }
+
+    public void setNumProjectedFeatures(int numProjectedFeatures) {
+        this.m_numProjectedFeatures = numProjectedFeatures;
+    }
+
+    @OptionMetadata(
+            displayName = "Refine dictionary",
+            description = "Whether to refine the dictionary with patches sampled from each batch after the first.",
+            displayOrder = 21,
+            commandLineParamName = "refine",
+            commandLineParamSynopsis = "-refine",
+            commandLineParamIsFlag = true)
+    public boolean getRefine() {
+        return m_refine;
+    }
+
+    public void setRefine(boolean refine) {
+        this.m_refine = refine;
+    }
+
+    @OptionMetadata(
+            displayName = "Number of refinement patches",
+            description = "The number of patches sampled from each batch to refine the dictionary with (at most the number of patches per image for each image in the batch).",
+            displayOrder = 22,
+            commandLineParamName = "refinePatches",
+            commandLineParamSynopsis = "-refinePatches")
+    public int getNumRefinementPatches() {
+        return m_numRefinementPatches;
+    }
+
+    public void setNumRefinementPatches(int numRefinementPatches) {
+        this.m_numRefinementPatches = numRefinementPatches;
+    }
+
+    @OptionMetadata(
+            displayName = "Refinement decay",
+            description = "The factor the accumulated sums of the dictionary are multiplied by before each refinement with the full number of refinement patches (between 0 and 1; lower adapts faster; smaller samples decay proportionally less).",
+            displayOrder = 23,
+            commandLineParamName = "refineDecay",
+            commandLineParamSynopsis = "-refineDecay")
+    public double getRefinementDecay() {
+        return m_refinementDecay;
+    }
+
+    public void setRefinementDecay(double refinementDecay) {
+        this.m_refinementDecay = refinementDecay;
+    }
+
+    @OptionMetadata(
+            displayName = "Packed image file",
+            description = "A file of decoded images created by PackedImageDataset, which is used instead of the image files it contains (empty for none).",
+            displayOrder = 19,
+            commandLineParamName = "packed",
+            commandLineParamSynopsis = "-packed")
+    public String getPackedFile() {
+        return m_packedFile;
+    }
+
+    public void setPackedFile(String packedFile) {
+        this.m_packedFile = packedFile;
+    }
+
+    /**
+     * A task that is run for each shard of the training patches.
+     *
+     * @param <T> the type of the result of the task
+     */
+    protected interface ShardTask<T> {
+
+        /**
+         * Runs the task for a shard.
+         *
+         * @param shard the index of the shard
+         * @return the result for the shard
+         * @throws Exception if the task failed
+         */
+        T run(int shard) throws Exception;
+    }
+
+    /**
+     * The shards of the matrix of training patches, each a range of columns. The shards are either kept in memory or
+     * spilled to files in a directory, in which case a shard is read from its file each time it is needed so that
+     * only the shards being processed are held in memory. The files are deleted when the shards are closed.
+     */
+    protected static class PatchShards implements Closeable {
+
+        /**
+         * The size in bytes of the buffer used to read and write spilled shards.
+         */
+        protected static final int BUFFER_SIZE = 1 << 20;
+
+        /**
+         * The number of values in each column.
+         */
+        protected int m_numValues;
+
+        /**
+         * The index of the first column of each shard, followed by the number of columns.
+         */
+        protected int[] m_starts;
+
+        /**
+         * The shards kept in memory, or null if the shards are spilled.
+         */
+        protected Matrix[] m_shards;
+
+        /**
+         * The files of the spilled shards, or null if the shards are kept in memory.
+         */
+        protected Path[] m_files;
+
+        /**
+         * Creates empty shards.
+         *
+         * @param numValues      number of values in each column
+         * @param numColumns     number of columns
+         * @param numShards      number of shards
+         * @param spillDirectory directory to spill the shards to, or null to keep them in memory
+         * @throws IOException error creating the spill files
+         */
+        protected PatchShards(int numValues, int numColumns, int numShards, Path spillDirectory) throws IOException {
+            m_numValues = numValues;
+            m_starts = new int[numShards + 1];
+            for (int s = 0; s <= numShards; s++) {
+                m_starts[s] = (int) ((long) s * numColumns / numShards);
+            }
+            if (spillDirectory == null) {
+                m_shards = new Matrix[numShards];
+            } else {
+                Files.createDirectories(spillDirectory);
+                m_files = new Path[numShards];
+                try {
+                    for (int s = 0; s < numShards; s++) {
+                        m_files[s] = Files.createTempFile(spillDirectory, "shard", ".bin");
+                    }
+                } catch (IOException e) {
+                    close();
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * Returns the number of shards.
+         *
+         * @return the number of shards
+         */
+        protected int numShards() {
+            return m_starts.length - 1;
+        }
+
+        /**
+         * Returns the index of the first column of a shard.
+         *
+         * @param shard the index of the shard, or the number of shards for the number of columns
+         * @return the index of the first column
+         */
+        protected int getStart(int shard) {
+            return m_starts[shard];
+        }
+
+        /**
+         * Returns the number of columns in a shard.
+         *
+         * @param shard the index of the shard
+         * @return the number of columns
+         */
+        protected int numColumns(int shard) {
+            return m_starts[shard + 1] - m_starts[shard];
+        }
+
+        /**
+         * Returns a shard. A spilled shard is read into a new matrix.
+         *
+         * @param shard the index of the shard
+         * @return the shard
+         * @throws IOException error reading the spilled shard
+         */
+        protected Matrix get(int shard) throws IOException {
+            if (m_shards != null) {
+                return m_shards[shard];
+            }
+            DenseMatrix matrix = new DenseMatrix(m_numValues, numColumns(shard));
+            read(m_files[shard], 0, matrix.getData(), 0, matrix.getData().length);
+            return matrix;
+        }
+
+        /**
+         * Replaces a shard. A spilled shard is written to its file.
+         *
+         * @param shard  the index of the shard
+         * @param matrix the new shard
+         * @throws IOException error writing the spilled shard
+         */
+        protected void set(int shard, Matrix matrix) throws IOException {
+            if (m_shards != null) {
+                m_shards[shard] = matrix;
+                return;
+            }
+            double[] values = (matrix instanceof DenseMatrix) ? ((DenseMatrix) matrix).getData() : new DenseMatrix(matrix).getData();
+            try (FileChannel channel = FileChannel.open(m_files[shard], StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                for (int i = 0; i < values.length; ) {
+                    buffer.clear();
+                    int length = Math.min(values.length - i, BUFFER_SIZE / 8);
+                    buffer.asDoubleBuffer().put(values, i, length);
+                    buffer.limit(8 * length);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    i += length;
+                }
+            }
+        }
+
+        /**
+         * Copies a column into an array.
+         *
+         * @param column the index of the column
+         * @param dst    the array to copy the column to
+         * @param offset the start of the range to copy the column to
+         * @throws IOException error reading the spilled shard
+         */
+        protected void getColumn(int column, double[] dst, int offset) throws IOException {
+            int shard = 0;
+            while (column >= m_starts[shard + 1]) {
+                shard++;
+            }
+            int index = (column - m_starts[shard]) * m_numValues;
+            if (m_shards != null) {
+                System.arraycopy(((DenseMatrix) m_shards[shard]).getData(), index, dst, offset, m_numValues);
+            } else {
+                read(m_files[shard], 8L * index, dst, offset, m_numValues);
+            }
+        }
+
+        /**
+         * Reads values from a spilled shard.
+         *
+         * @param file     the file of the shard
+         * @param position the position in the file to start reading at
+         * @param dst      the array to read the values into
+         * @param offset   the start of the range to read the values into
+         * @param length   the number of values to read
+         * @throws IOException error reading from the file
+         */
+        protected static void read(Path file, long position, double[] dst, int offset, int length) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                for (int i = 0; i < length; ) {
+                    buffer.clear();
+                    buffer.limit(8 * Math.min(length - i, BUFFER_SIZE / 8));
+                    while (buffer.hasRemaining()) {
+                        int numBytes = channel.read(buffer, position);
+                        if (numBytes < 0) {
+                            throw new EOFException("Shard file " + file + " is truncated.");
+                        }
+                        position += numBytes;
+                    }
+                    buffer.flip();
+                    int n = buffer.remaining() / 8;
+                    buffer.asDoubleBuffer().get(dst, offset + i, n);
+                    i += n;
+                }
+            }
+        }
+
+        /**
+         * Deletes the files of spilled shards.
+         *
+         * @throws IOException error deleting a file
+         */
+        public void close() throws IOException {
+            if (m_files != null) {
+                for (Path file : m_files) {
+                    if (file != null) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The statistics of a shard of the training patches that are needed for an iteration of spherical k-means.
+     * Statistics of different shards are merged by summing them.
+     */
+    protected static class ShardStatistics {
+
+        /**
+         * The sum of the patches assigned to each centroid, weighted by their assignments.
+         */
+        protected Matrix m_dictionaryUpdate;
+
+        /**
+         * The sum of squared errors.
+         */
+        protected double m_sumOfSquaredErrors;
+
+        /**
+         * The number of patches assigned to each centroid.
+         */
+        protected int[] m_counts;
+
+        /**
+         * Merges the statistics of another shard into these statistics.
+         *
+         * @param other the statistics to merge
+         * @return these statistics
+         */
+        protected ShardStatistics merge(ShardStatistics other) {
+            m_dictionaryUpdate = m_dictionaryUpdate.add(other.m_dictionaryUpdate);
+            m_sumOfSquaredErrors += other.m_sumOfSquaredErrors;
+            for (int i = 0; i < m_counts.length; i++) {
+                m_counts[i] += other.m_counts[i];
+            }
+            return this;
+        }
+    }
+
+    /**
+     * A dictionary quantised to 8-bit integers, with one scale per atom. Patches are quantised the same way, with one
+     * scale per patch, so that responses can be computed with integer dot products.
+     */
+    protected static class QuantisedDictionary {
+
+        /**
+         * The quantised atoms, stored consecutively.
+         */
+        protected byte[] m_values;
+
+        /**
+         * The scale of each atom.
+         */
+        protected double[] m_scales;
+
+        /**
+         * The number of values in each atom.
+         */
+        protected int m_numValues;
+
+        /**
+         * Quantises a dictionary.
+         *
+         * @param D the dictionary, with one column per atom
+         */
+        protected QuantisedDictionary(Matrix D) {
+            m_numValues = D.numRows();
+            m_values = new byte[D.numRows() * D.numColumns()];
+            m_scales = new double[D.numColumns()];
+            double[] values = (D instanceof DenseMatrix) ? ((DenseMatrix) D).getData() : new DenseMatrix(D).getData();
+            for (int c = 0; c < D.numColumns(); c++) {
+                m_scales[c] = quantise(values, c * m_numValues, m_values, c * m_numValues, m_numValues);
+            }
+        }
+
+        /**
+         * Quantises a range of an array to 8-bit integers so that the largest absolute value maps to 127.
+         *
+         * @param src       the array to quantise
+         * @param srcOffset the start of the range to quantise
+         * @param dst       the array to store the quantised values in
+         * @param dstOffset the start of the range to store the quantised values in
+         * @param length    the length of the ranges
+         * @return the scale to multiply the quantised values by to approximate the original values
+         */
+        protected static double quantise(double[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+            double max = 0;
+            for (int i = 0; i < length; i++) {
+                max = Math.max(max, Math.abs(src[srcOffset + i]));
+            }
+            double scale = (max == 0) ? 1 : max / 127;
+            for (int i = 0; i < length; i++) {
+                dst[dstOffset + i] = (byte) Math.round(src[srcOffset + i] / scale);
+            }
+            return scale;
+        }
+
+        /**
+         * Computes the responses of the atoms to a set of patches, approximating D^T * P.
+         *
+         * @param P      the patches, with one column per patch
+         * @param result matrix to store the responses in, with one column per patch
+         * @return the result matrix
+         */
+        protected Matrix transAmult(Matrix P, Matrix result) {
+            int numAtoms = m_scales.length;
+            double[] patches = (P instanceof DenseMatrix) ? ((DenseMatrix) P).getData() : new DenseMatrix(P).getData();
+            double[] responses = ((DenseMatrix) result).getData();
+            byte[] patch = new byte[m_numValues];
+            for (int c = 0; c < P.numColumns(); c++) {
+                double patchScale = quantise(patches, c * m_numValues, patch, 0, m_numValues);
+                for (int k = 0; k < numAtoms; k++) {
+                    responses[c * numAtoms + k] = m_scales[k] * patchScale * KERNELS.dot(m_values, k * m_numValues, patch, 0, m_numValues);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A very sparse random projection (Li, Hastie and Church, 2006), which approximately preserves distances between
+     * feature vectors. Each entry of the projection matrix is non-zero with probability 1/s, where s is the square
+     * root of the number of inputs, and is then +sqrt(s / numOutputs) or -sqrt(s / numOutputs) with equal probability.
+     * The matrix is generated from a seed, so it does not need to be stored. The non-zero entries are found by
+     * drawing the geometrically distributed gaps between them, so generating the matrix takes time proportional to
+     * the number of non-zero entries rather than to the size of the matrix.
+     */
+    protected static class SparseRandomProjection {
+
+        /**
+         * The number of inputs.
+         */
+        protected int m_numInputs;
+
+        /**
+         * The number of outputs.
+         */
+        protected int m_numOutputs;
+
+        /**
+         * The seed the projection was generated from.
+         */
+        protected int m_seed;
+
+        /**
+         * The start of the non-zero entries of each input in m_outputs and m_values, followed by their total number.
+         */
+        protected int[] m_starts;
+
+        /**
+         * The output of each non-zero entry.
+         */
+        protected int[] m_outputs;
+
+        /**
+         * The value of each non-zero entry.
+         */
+        protected double[] m_values;
+
+        /**
+         * Generates a projection.
+         *
+         * @param numInputs  the number of inputs
+         * @param numOutputs the number of outputs
+         * @param seed       the seed for the random number generator
+         */
+        protected SparseRandomProjection(int numInputs, int numOutputs, int seed) {
+            m_numInputs = numInputs;
+            m_numOutputs = numOutputs;
+            m_seed = seed;
+            double s = Math.sqrt(numInputs);
+            double density = Math.min(1, 1 / s);
+            double value = Math.sqrt(1 / (density * numOutputs));
+            Random rand = new Random(seed);
+
+            m_starts = new int[numInputs + 1];
+            m_outputs = new int[(int) Math.min(Integer.MAX_VALUE - 8, Math.ceil(density * numInputs * numOutputs) + 16)];
+            m_values = new double[m_outputs.length];
+            int numEntries = 0;
+            int input = 0;
+
+            // Visit the non-zero entries in order of input, then output, skipping the zero entries between them
+            long numElements = (long) numInputs * numOutputs;
+            double logOfZeroProbability = Math.log1p(-density);
+            long position = -1;
+            while (true) {
+                if (density >= 1) {
+                    position++;
+                } else {
+                    position += 1 + (long) Math.floor(Math.log(1 - rand.nextDouble()) / logOfZeroProbability);
+                }
+                if (position >= numElements) {
+                    break;
+                }
+
+                // Start the entries of the inputs up to the input of this entry
+                int i = (int) (position / numOutputs);
+                while (input < i) {
+                    m_starts[++input] = numEntries;
+                }
+
+                if (numEntries == m_outputs.length) {
+                    m_outputs = Arrays.copyOf(m_outputs, m_outputs.length + m_outputs.length / 2);
+                    m_values = Arrays.copyOf(m_values, m_outputs.length);
+                }
+                m_outputs[numEntries] = (int) (position % numOutputs);
+                m_values[numEntries] = rand.nextBoolean() ? value : -value;
+                numEntries++;
+            }
+            while (input < numInputs) {
+                m_starts[++input] = numEntries;
+            }
+        }
+
+        /**
+         * Projects a feature vector.
+         *
+         * @param features the feature vector, with m_numInputs features
+         * @param length   the length of the array to return, which needs to be at least m_numOutputs
+         * @return an array with the projected features at the start
+         */
+        protected double[] project(double[] features, int length) {
+            double[] projected = new double[length];
+            for (int i = 0; i < m_numInputs; i++) {
+                double x = features[i];
+                if (x != 0) {
+                    for (int e = m_starts[i]; e < m_starts[i + 1]; e++) {
+                        projected[m_outputs[e]] += m_values[e] * x;
+                    }
+                }
+            }
+            return projected;
+        }
+    }
+
+    /**
+     * An estimate of the memory needed by the largest allocations made by the filter, broken down by phase and
+     * allocation. The phases run one after the other and release their matrices when they finish, so the peak is
+     * that of the largest phase. An allocation that lives through several phases is listed in each of them.
+     */
+    protected static class MemoryPlan {
+
+        /**
+         * The names of the phases.
+         */
+        protected List<String> m_phases = new ArrayList<>();
+
+        /**
+         * The names of the allocations made in each phase.
+         */
+        protected List<List<String>> m_names = new ArrayList<>();
+
+        /**
+         * The sizes in bytes of the allocations made in each phase.
+         */
+        protected List<List<Long>> m_sizes = new ArrayList<>();
+
+        /**
+         * Starts a phase, which the allocations added after it belong to.
+         *
+         * @param name the name of the phase
+         */
+        protected void addPhase(String name) {
+            m_phases.add(name);
+            m_names.add(new ArrayList<>());
+            m_sizes.add(new ArrayList<>());
+        }
+
+        /**
+         * Adds an allocation made in the current phase.
+         *
+         * @param name  the name of the allocation
+         * @param bytes the size of the allocation in bytes
+         */
+        protected void add(String name, long bytes) {
+            m_names.get(m_names.size() - 1).add(name);
+            m_sizes.get(m_sizes.size() - 1).add(bytes);
+        }
+
+        /**
+         * Returns the estimated peak memory use, which is that of the phase that needs the most memory.
+         *
+         * @return the peak memory use in bytes
+         */
+        protected long getPeak() {
+            long peak = 0;
+            for (List<Long> sizes : m_sizes) {
+                peak = Math.max(peak, sum(sizes));
+            }
+            return peak;
+        }
+
+        /**
+         * Sums a list of sizes.
+         *
+         * @param sizes the sizes
+         * @return the sum
+         */
+        protected static long sum(List<Long> sizes) {
+            long total = 0;
+            for (long size : sizes) {
+                total += size;
+            }
+            return total;
+        }
+
+        /**
+         * Formats a number of bytes as megabytes.
+         *
+         * @param bytes the number of bytes
+         * @return the number of megabytes, with one decimal
+         */
+        protected static String toMegabytes(long bytes) {
+            return String.format("%.1f MB", bytes / (double) (1 << 20));
+        }
+
+        /**
+         * Returns the breakdown of the estimate.
+         *
+         * @return the breakdown
+         */
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int p = 0; p < m_phases.size(); p++) {
+                sb.append(m_phases.get(p)).append(": ").append(toMegabytes(sum(m_sizes.get(p)))).append("\n");
+                for (int i = 0; i < m_names.get(p).size(); i++) {
+                    sb.append("  ").append(m_names.get(p).get(i)).append(": ").append(toMegabytes(m_sizes.get(p).get(i))).append("\n");
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The state of the dictionary training at the start of a k-means iteration. The patches themselves are not
+     * stored because they are extracted again from the images with the same seed when training is resumed.
+     */
+    protected static class TrainingCheckpoint implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The number of values in a patch.
+         */
+        protected int m_numPatchValues;
+
+        /**
+         * The number of clusters.
+         */
+        protected int m_K;
+
+        /**
+         * The number of patches.
+         */
+        protected int m_numPatches;
+
+        /**
+         * The seed used to extract the patches.
+         */
+        protected int m_seed;
+
+        /**
+         * The fingerprint of the file names of the training images and the number of patches per image.
+         */
+        protected byte[] m_dataFingerprint;
+
+        /**
+         * The whitening matrix, in column-major order.
+         */
+        protected double[] m_whitening;
+
+        /**
+         * The dictionary matrix, in column-major order.
+         */
+        protected double[] m_dictionary;
+
+        /**
+         * The iteration to continue from.
+         */
+        protected int m_iteration;
+
+        /**
+         * The sum of squared errors of the previous iteration.
+         */
+        protected double m_sumOfSquaredErrors;
+
+        /**
+         * Whether there may still be empty centroids.
+         */
+        protected boolean m_maybeEmptyCentroids;
+
+        /**
+         * The random number generator, in the state it is in at the start of the iteration.
+         */
+        protected Random m_random;
+
+        /**
+         * Creates a checkpoint of the given training state.
+         *
+         * @param numPatchValues      number of values in a patch
+         * @param numPatches          number of patches
+         * @param seed                seed used to extract the patches
+         * @param dataFingerprint     fingerprint of the training images and the number of patches per image
+         * @param whitening           whitening matrix
+         * @param dictionary          dictionary matrix
+         * @param iteration           iteration to continue from
+         * @param sumOfSquaredErrors  sum of squared errors of the previous iteration
+         * @param maybeEmptyCentroids whether there may still be empty centroids
+         * @param random              random number generator
+         */
+        protected TrainingCheckpoint(int numPatchValues, int numPatches, int seed, byte[] dataFingerprint,
+                                     Matrix whitening, Matrix dictionary, int iteration, double sumOfSquaredErrors,
+                                     boolean maybeEmptyCentroids, Random random) {
+            m_numPatchValues = numPatchValues;
+            m_K = dictionary.numColumns();
+            m_numPatches = numPatches;
+            m_seed = seed;
+            m_dataFingerprint = dataFingerprint;
+            m_whitening = new DenseMatrix(whitening).getData();
+            m_dictionary = new DenseMatrix(dictionary).getData();
+            m_iteration = iteration;
+            m_sumOfSquaredErrors = sumOfSquaredErrors;
+            m_maybeEmptyCentroids = maybeEmptyCentroids;
+            m_random = random;
+        }
+
+        /**
+         * Returns the whitening matrix stored in this checkpoint.
+         *
+         * @return the whitening matrix
+         */
+        protected Matrix getWhiteningMatrix() {
+            return new UpperSymmDenseMatrix(new DenseMatrix(m_numPatchValues, m_numPatchValues, m_whitening, false));
+        }
+
+        /**
+         * Returns the dictionary matrix stored in this checkpoint.
+         *
+         * @return the dictionary matrix
+         */
+        protected Matrix getDictionary() {
+            return new DenseMatrix(m_numPatchValues, m_K, m_dictionary.clone(), false);
+        }
+    }
+
+    /**
+     * Writes this filter to a stream, including the dictionary, the whitening matrix and the sums of the atoms.
+     *
+     * @param out the stream to write to
+     * @throws IOException error writing to the stream
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        writeMatrix(out, m_D);
+        writeMatrix(out, m_W);
+        writeMatrix(out, m_atomSums);
+    }
+
+    /**
+     * Reads this filter from a stream, including the dictionary, the whitening matrix and the sums of the atoms.
+     *
+     * @param in the stream to read from
+     * @throws IOException            error reading from the stream
+     * @throws ClassNotFoundException if a class of the filter could not be found
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        m_D = readMatrix(in);
+        m_W = readMatrix(in);
+        m_atomSums = readMatrix(in);
+    }
+
+    /**
+     * Writes a matrix to a stream as its size and its values.
+     *
+     * @param out    the stream to write to
+     * @param matrix the matrix, or null
+     * @throws IOException error writing to the stream
+     */
+    private static void writeMatrix(ObjectOutputStream out, Matrix matrix) throws IOException {
+        out.writeObject((matrix == null) ? null : new int[]{matrix.numRows(), matrix.numColumns()});
+        out.writeObject((matrix == null) ? null : new DenseMatrix(matrix).getData());
+    }
+
+    /**
+     * Reads a matrix written by writeMatrix().
+     *
+     * @param in the stream to read from
+     * @return the matrix, or null
+     * @throws IOException            error reading from the stream
+     * @throws ClassNotFoundException if a class could not be found
+     */
+    private static Matrix readMatrix(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        int[] size = (int[]) in.readObject();
+        double[] data = (double[]) in.readObject();
+        return (size == null) ? null : new DenseMatrix(size[0], size[1], data, false);
+    }
+
     /**
      * The main method used for running this filter from the command-line interface.
      *
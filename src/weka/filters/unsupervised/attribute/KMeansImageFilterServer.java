@@ -0,0 +1,337 @@
+package weka.filters.unsupervised.attribute;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+import weka.filters.Filter;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A long-running process that keeps a trained KMeansImageFilter in memory and encodes images on request, so that
+ * JVM startup, class loading and dictionary training are only paid once.
+ * <p>
+ * Requests are read one per line, each line being the file name of an image. For each request, one line is written
+ * back in the same order: "OK", the file name and the comma-separated feature vector (without the class), separated by
+ * tabs, or "ERROR", the file name and a message. Requests are read from standard input, or from connections to a
+ * local port if -port is given. Requests that are waiting when a worker becomes free are encoded together as one batch.
+ * Each worker encodes with its own copy of the filter, in which online refinement of the dictionary is turned off.
+ * <p>
+ * Usage: KMeansImageFilterServer (-model &lt;file&gt; | -train &lt;arff&gt; [-c &lt;class index&gt;] [-save &lt;file&gt;])
+ * [-port &lt;port&gt;] [-workers &lt;n&gt;] [-batch &lt;n&gt;] [-- &lt;filter options&gt;]
+ */
+public class KMeansImageFilterServer {
+
+    /**
+     * An image to encode and the response to it.
+     */
+    protected static class Request {
+
+        /**
+         * The file name of the image.
+         */
+        protected String m_fileName;
+
+        /**
+         * The line to send back once the image has been encoded.
+         */
+        protected CompletableFuture<String> m_response = new CompletableFuture<>();
+
+        /**
+         * Creates a request.
+         *
+         * @param fileName the file name of the image
+         */
+        protected Request(String fileName) {
+            m_fileName = fileName;
+        }
+    }
+
+    /**
+     * The trained filter.
+     */
+    protected Filter m_filter;
+
+    /**
+     * The format of the data the filter was trained on.
+     */
+    protected Instances m_header;
+
+    /**
+     * The maximum number of images encoded in one batch.
+     */
+    protected int m_batchSize;
+
+    /**
+     * The requests waiting to be encoded.
+     */
+    protected BlockingQueue<Request> m_queue = new LinkedBlockingQueue<>();
+
+    /**
+     * Creates a server for a trained filter.
+     *
+     * @param filter    the trained filter
+     * @param batchSize the maximum number of images encoded in one batch
+     */
+    public KMeansImageFilterServer(Filter filter, int batchSize) {
+        m_filter = filter;
+        m_header = filter.getCopyOfInputFormat();
+        m_batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Starts the worker threads, each of which uses its own copy of the filter.
+     *
+     * @param numWorkers the number of worker threads
+     * @throws Exception if the filter could not be copied
+     */
+    public void startWorkers(int numWorkers) throws Exception {
+        if (m_filter instanceof KMeansImageFilter && ((KMeansImageFilter) m_filter).getRefine()) {
+            System.err.println("Refinement is disabled because each worker would refine its own copy of the dictionary.");
+        }
+        for (int i = 0; i < Math.max(1, numWorkers); i++) {
+            Filter filter = copyFilter();
+            Thread worker = new Thread(() -> work(filter), "encoder-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Makes a copy of the trained filter for a worker. Refinement is turned off in the copy, because the copies are
+     * independent: each would refine its own dictionary on the requests it happens to get, and the refinements would
+     * be lost whenever a copy is replaced after a failure.
+     *
+     * @return the copy
+     * @throws Exception if the filter could not be copied
+     */
+    protected Filter copyFilter() throws Exception {
+        Filter filter = Filter.makeCopy(m_filter);
+        if (filter instanceof KMeansImageFilter) {
+            ((KMeansImageFilter) filter).setRefine(false);
+        }
+        return filter;
+    }
+
+    /**
+     * Encodes the queued requests in batches until the thread is interrupted.
+     *
+     * @param filter the filter to use
+     */
+    protected void work(Filter filter) {
+        List<Request> batch = new ArrayList<>(m_batchSize);
+        try {
+            while (true) {
+                batch.clear();
+                batch.add(m_queue.take());
+                m_queue.drainTo(batch, m_batchSize - 1);
+                try {
+                    encode(filter, batch);
+                } catch (Exception e) {
+                    // Encode the requests one at a time so that only the failing ones get an error. A filter that
+                    // failed may still hold some of the instances, so a new copy is used after each failure.
+                    filter = copyFilter();
+                    for (Request request : batch) {
+                        try {
+                            encode(filter, request);
+                        } catch (Exception e2) {
+                            // The message must not break the one-line, tab-separated format of the responses
+                            String message = String.valueOf(e2.getMessage()).replaceAll("[\\t\\r\\n]+", " ");
+                            request.m_response.complete("ERROR\t" + request.m_fileName + "\t" + message);
+                            filter = copyFilter();
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stop working
+        } catch (Exception e) {
+            System.err.println("Worker stopped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes a single request.
+     *
+     * @param filter  the filter to use
+     * @param request the request
+     * @throws Exception if the image could not be encoded
+     */
+    protected void encode(Filter filter, Request request) throws Exception {
+        List<Request> batch = new ArrayList<>(1);
+        batch.add(request);
+        encode(filter, batch);
+    }
+
+    /**
+     * Encodes a batch of requests and completes their responses.
+     *
+     * @param filter the filter to use
+     * @param batch  the requests
+     * @throws Exception if any of the images could not be encoded
+     */
+    protected void encode(Filter filter, List<Request> batch) throws Exception {
+        Instances data = new Instances(m_header, batch.size());
+        for (Request request : batch) {
+            Instance inst = new DenseInstance(data.numAttributes());
+            inst.setDataset(data);
+            inst.setValue(0, request.m_fileName);
+            data.add(inst);
+        }
+
+        Instances output = Filter.useFilter(data, filter);
+        for (int i = 0; i < batch.size(); i++) {
+            StringBuilder sb = new StringBuilder("OK\t").append(batch.get(i).m_fileName).append('\t');
+            Instance inst = output.instance(i);
+            boolean first = true;
+            for (int j = 0; j < inst.numAttributes(); j++) {
+                if (j != output.classIndex()) {
+                    if (!first) {
+                        sb.append(',');
+                    }
+                    sb.append(inst.value(j));
+                    first = false;
+                }
+            }
+            batch.get(i).m_response.complete(sb.toString());
+        }
+    }
+
+    /**
+     * Reads requests from a stream and writes the responses, in the order of the requests, to another stream until
+     * the input ends.
+     *
+     * @param in  the stream to read requests from
+     * @param out the stream to write responses to
+     * @throws Exception if reading or writing failed
+     */
+    public void serve(InputStream in, OutputStream out) throws Exception {
+        BlockingQueue<Request> pending = new LinkedBlockingQueue<>();
+        Request endOfInput = new Request(null);
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+
+        // Write the responses as they become available, flushing whenever there are no more to write
+        Thread responder = new Thread(() -> {
+            try {
+                for (Request request = pending.take(); request != endOfInput; request = pending.take()) {
+                    writer.println(request.m_response.get());
+                    if (pending.isEmpty()) {
+                        writer.flush();
+                    }
+                }
+            } catch (Exception e) {
+                // The connection is being closed
+            }
+            writer.flush();
+        });
+        responder.start();
+
+        // The reader is not closed because that would also close the socket the responses are written to
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                Request request = new Request(line.trim());
+                pending.add(request);
+                m_queue.add(request);
+            }
+        } finally {
+            pending.add(endOfInput);
+            responder.join();
+        }
+    }
+
+    /**
+     * Accepts connections on a local port and serves each of them in its own thread.
+     *
+     * @param port the port
+     * @throws IOException if the port could not be opened
+     */
+    public void serve(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("Listening on " + serverSocket.getLocalSocketAddress());
+            while (true) {
+                Socket socket = serverSocket.accept();
+                new Thread(() -> {
+                    try (Socket s = socket) {
+                        serve(s.getInputStream(), s.getOutputStream());
+                    } catch (Exception e) {
+                        System.err.println("Connection failed: " + e.getMessage());
+                    }
+                }).start();
+            }
+        }
+    }
+
+    /**
+     * Loads or trains the filter and serves requests.
+     *
+     * @param args the command-line options
+     */
+    public static void main(String[] args) {
+        try {
+            String modelFile = Utils.getOption("model", args);
+            String trainFile = Utils.getOption("train", args);
+            String classIndex = Utils.getOption('c', args);
+            String saveFile = Utils.getOption("save", args);
+            String port = Utils.getOption("port", args);
+            String workers = Utils.getOption("workers", args);
+            String batchSize = Utils.getOption("batch", args);
+            String[] filterOptions = Utils.partitionOptions(args);
+
+            Filter filter;
+            if (!modelFile.isEmpty()) {
+                filter = (Filter) SerializationHelper.read(modelFile);
+            } else if (!trainFile.isEmpty()) {
+                // Train the filter on the first batch
+                Instances data = DataSource.read(trainFile);
+                if (classIndex.equals("first")) {
+                    data.setClassIndex(0);
+                } else if (classIndex.equals("last")) {
+                    data.setClassIndex(data.numAttributes() - 1);
+                } else if (!classIndex.isEmpty()) {
+                    data.setClassIndex(Integer.parseInt(classIndex) - 1);
+                }
+                KMeansImageFilter kMeansImageFilter = new KMeansImageFilter();
+                kMeansImageFilter.setOptions(filterOptions);
+                kMeansImageFilter.setInputFormat(data);
+                Filter.useFilter(data, kMeansImageFilter);
+                filter = kMeansImageFilter;
+                if (!saveFile.isEmpty()) {
+                    SerializationHelper.write(saveFile, filter);
+                }
+            } else {
+                throw new IllegalArgumentException("Either -model or -train has to be given.");
+            }
+
+            KMeansImageFilterServer server = new KMeansImageFilterServer(filter,
+                    batchSize.isEmpty() ? 16 : Integer.parseInt(batchSize));
+            server.startWorkers(workers.isEmpty() ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(workers));
+            if (port.isEmpty()) {
+                server.serve(System.in, System.out);
+            } else {
+                server.serve(Integer.parseInt(port));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("\nUsage: KMeansImageFilterServer (-model <file> | -train <arff> [-c <class index>] [-save <file>])"
+                    + " [-port <port>] [-workers <n>] [-batch <n>] [-- <filter options>]");
+            System.exit(1);
+        }
+    }
+}
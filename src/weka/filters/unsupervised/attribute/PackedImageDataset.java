@@ -0,0 +1,337 @@
+package weka.filters.unsupervised.attribute;
+
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A set of decoded images of the same size stored in a single file, which is read through a memory mapping so that
+ * pixels come straight from the page cache without any decoding.
+ * <p>
+ * The file starts with a header of 32 bytes: the magic number "KMIF", the format version, the number of images, the
+ * width, the height and the number of channels of the images (all ints), and the offset of the index (a long). The
+ * pixels of the images follow, one image after the other, each stored row by row with one unsigned byte per channel
+ * (red, green, blue). The index at the end of the file lists the file name of each image, as the length of its UTF-8
+ * encoding (an int) followed by the encoding. All numbers are big-endian.
+ * <p>
+ * The file channel is closed as soon as the file has been mapped, as the mappings stay valid until they are garbage
+ * collected. Filters should use getShared() so that all copies of a filter share one mapping of each file.
+ * <p>
+ * The main method converts the images listed in the first attribute of a dataset into a packed file.
+ * <p>
+ * Usage: PackedImageDataset -i &lt;dataset&gt; -o &lt;packed file&gt;
+ */
+public class PackedImageDataset {
+
+    /**
+     * The magic number at the start of a packed file.
+     */
+    public static final int MAGIC = 0x4B4D4946;
+
+    /**
+     * The version of the file format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The size of the header in bytes.
+     */
+    public static final int HEADER_SIZE = 32;
+
+    /**
+     * The number of channels stored for each pixel.
+     */
+    public static final int NUM_CHANNELS = 3;
+
+    /**
+     * The maximum size of a single mapping of the file.
+     */
+    protected static final long MAX_CHUNK_SIZE = 1L << 30;
+
+    /**
+     * The datasets shared by all filters, by absolute path of their file.
+     */
+    protected static final Map<Path, PackedImageDataset> SHARED = new HashMap<>();
+
+    /**
+     * The time the file was last modified when it was opened.
+     */
+    protected FileTime m_lastModified;
+
+    /**
+     * The size of the file when it was opened.
+     */
+    protected long m_fileSize;
+
+    /**
+     * The mappings of the file, each containing a whole number of images.
+     */
+    protected MappedByteBuffer[] m_chunks;
+
+    /**
+     * The number of images in each mapping.
+     */
+    protected int m_imagesPerChunk;
+
+    /**
+     * The number of images.
+     */
+    protected int m_numImages;
+
+    /**
+     * The width of the images.
+     */
+    protected int m_width;
+
+    /**
+     * The height of the images.
+     */
+    protected int m_height;
+
+    /**
+     * The number of bytes in each image.
+     */
+    protected int m_imageBytes;
+
+    /**
+     * The index of each image, by file name.
+     */
+    protected Map<String, Integer> m_index = new HashMap<>();
+
+    /**
+     * Opens a packed file.
+     *
+     * @param file the packed file
+     * @throws IOException error reading from the file or the file is not a packed file
+     */
+    public PackedImageDataset(Path file) throws IOException {
+        m_lastModified = Files.getLastModifiedTime(file);
+        m_fileSize = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+                // Read the whole header
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a packed image file.");
+            }
+            if (header.getInt() != VERSION) {
+                throw new IOException(file + " has an unsupported version.");
+            }
+            m_numImages = header.getInt();
+            m_width = header.getInt();
+            m_height = header.getInt();
+            if (header.getInt() != NUM_CHANNELS) {
+                throw new IOException(file + " does not have " + NUM_CHANNELS + " channels.");
+            }
+            long indexOffset = header.getLong();
+            m_imageBytes = m_width * m_height * NUM_CHANNELS;
+
+            // Map the pixels in chunks of whole images
+            m_imagesPerChunk = (int) Math.max(1, Math.min(m_numImages, MAX_CHUNK_SIZE / Math.max(1, m_imageBytes)));
+            m_chunks = new MappedByteBuffer[(m_numImages + m_imagesPerChunk - 1) / m_imagesPerChunk];
+            for (int c = 0; c < m_chunks.length; c++) {
+                int numImages = Math.min(m_imagesPerChunk, m_numImages - c * m_imagesPerChunk);
+                m_chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE + (long) c * m_imagesPerChunk * m_imageBytes, (long) numImages * m_imageBytes);
+            }
+
+            // Read the index
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(file, StandardOpenOption.READ)))) {
+                in.skipNBytes(indexOffset);
+                for (int i = 0; i < m_numImages; i++) {
+                    byte[] name = new byte[in.readInt()];
+                    in.readFully(name);
+                    m_index.put(new String(name, StandardCharsets.UTF_8), i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the dataset of a packed file shared by all filters, opening the file if it has not been opened yet or
+     * has been modified since it was opened.
+     *
+     * @param file the packed file
+     * @return the dataset
+     * @throws IOException error reading from the file or the file is not a packed file
+     */
+    public static synchronized PackedImageDataset getShared(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        PackedImageDataset dataset = SHARED.get(key);
+        if (dataset == null || !dataset.m_lastModified.equals(Files.getLastModifiedTime(key)) ||
+                dataset.m_fileSize != Files.size(key)) {
+            dataset = new PackedImageDataset(key);
+            SHARED.put(key, dataset);
+        }
+        return dataset;
+    }
+
+    /**
+     * Returns the index of the image with the given file name.
+     *
+     * @param fileName the file name of the image
+     * @return the index of the image, or -1 if it is not in this file
+     */
+    public int indexOf(String fileName) {
+        Integer index = m_index.get(fileName);
+        return (index == null) ? -1 : index;
+    }
+
+    /**
+     * Returns the number of images.
+     *
+     * @return the number of images
+     */
+    public int numImages() {
+        return m_numImages;
+    }
+
+    /**
+     * Returns the width of the images.
+     *
+     * @return the width
+     */
+    public int getWidth() {
+        return m_width;
+    }
+
+    /**
+     * Returns the height of the images.
+     *
+     * @return the height
+     */
+    public int getHeight() {
+        return m_height;
+    }
+
+    /**
+     * Returns a pixel of an image in the default RGB colour model, like BufferedImage.getRGB().
+     *
+     * @param image the index of the image
+     * @param x     the x coordinate of the pixel
+     * @param y     the y coordinate of the pixel
+     * @return the pixel
+     */
+    public int getRGB(int image, int x, int y) {
+        MappedByteBuffer chunk = m_chunks[image / m_imagesPerChunk];
+        int position = (image % m_imagesPerChunk) * m_imageBytes + (y * m_width + x) * NUM_CHANNELS;
+        return 0xFF000000 | ((chunk.get(position) & 0xFF) << 16) | ((chunk.get(position + 1) & 0xFF) << 8)
+                | (chunk.get(position + 2) & 0xFF);
+    }
+
+    /**
+     * Returns the pixels of an image, without copying them.
+     *
+     * @param image the index of the image
+     * @return a read-only buffer with the pixels of the image
+     */
+    public ByteBuffer getPixels(int image) {
+        ByteBuffer pixels = m_chunks[image / m_imagesPerChunk].asReadOnlyBuffer();
+        pixels.position((image % m_imagesPerChunk) * m_imageBytes);
+        pixels.limit(pixels.position() + m_imageBytes);
+        return pixels.slice();
+    }
+
+    /**
+     * Decodes images and writes them to a packed file.
+     *
+     * @param fileNames the file names of the images, which need to have the same size
+     * @param file      the packed file to write
+     * @throws IOException error reading an image or writing the packed file
+     */
+    public static void write(String[] fileNames, Path file) throws IOException {
+        // The size of the images is taken from the first image, and is 0 if there are no images
+        BufferedImage first = (fileNames.length == 0) ? null : readImage(fileNames[0]);
+        int width = (first == null) ? 0 : first.getWidth();
+        int height = (first == null) ? 0 : first.getHeight();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(fileNames.length);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(NUM_CHANNELS);
+            out.writeLong(HEADER_SIZE + (long) fileNames.length * width * height * NUM_CHANNELS);
+
+            for (int i = 0; i < fileNames.length; i++) {
+                BufferedImage img = (i == 0) ? first : readImage(fileNames[i]);
+                if (img.getWidth() != width || img.getHeight() != height) {
+                    throw new IllegalArgumentException("Image " + fileNames[i] + " has different size.");
+                }
+
+                int[] rgb = img.getRGB(0, 0, width, height, null, 0, width);
+                for (int pixel : rgb) {
+                    out.writeByte(pixel >> 16);
+                    out.writeByte(pixel >> 8);
+                    out.writeByte(pixel);
+                }
+            }
+
+            // Write the index
+            for (String fileName : fileNames) {
+                byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+            }
+        }
+    }
+
+    /**
+     * Decodes an image.
+     *
+     * @param fileName the file name of the image
+     * @return the image
+     * @throws IOException error reading the image or its format is not supported
+     */
+    protected static BufferedImage readImage(String fileName) throws IOException {
+        BufferedImage img = ImageIO.read(new File(fileName));
+        if (img == null) {
+            throw new IOException("File " + fileName + " could not be read");
+        }
+        return img;
+    }
+
+    /**
+     * Converts the images listed in the first attribute of a dataset into a packed file.
+     *
+     * @param args the command-line options
+     */
+    public static void main(String[] args) {
+        try {
+            String input = Utils.getOption('i', args);
+            String output = Utils.getOption('o', args);
+            if (input.isEmpty() || output.isEmpty()) {
+                throw new IllegalArgumentException("Both -i and -o have to be given.");
+            }
+
+            Instances data = DataSource.read(input);
+            String[] fileNames = new String[data.numInstances()];
+            for (int i = 0; i < data.numInstances(); i++) {
+                fileNames[i] = data.instance(i).stringValue(0);
+            }
+            write(fileNames, Paths.get(output));
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("\nUsage: PackedImageDataset -i <dataset> -o <packed file>");
+            System.exit(1);
+        }
+    }
+}
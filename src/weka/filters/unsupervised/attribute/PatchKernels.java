@@ -0,0 +1,183 @@
+package weka.filters.unsupervised.attribute;
+
+/**
+ * The inner loops of the KMeansImageFilter, operating on ranges of arrays such as the columns of a DenseMatrix.
+ * This class provides plain scalar implementations. If VectorPatchKernels is on the classpath and the
+ * jdk.incubator.vector module is available, getInstance() returns an implementation that uses explicit SIMD
+ * instructions instead.
+ * <p>
+ * VectorPatchKernels is kept in the separate source root src-vector so that the rest of the code compiles without
+ * the incubator module. It is built on JDK 16 or later against the classes compiled from src, for example with
+ * javac --add-modules jdk.incubator.vector -cp &lt;classes from src&gt; -d &lt;output&gt;
+ * src-vector/weka/filters/unsupervised/attribute/VectorPatchKernels.java, and used by adding its output to the
+ * classpath and starting the JVM with --add-modules jdk.incubator.vector.
+ */
+public class PatchKernels {
+
+    /**
+     * The kernels used by the filter.
+     */
+    private static final PatchKernels INSTANCE = create();
+
+    /**
+     * Returns the fastest implementation of the kernels that is available.
+     *
+     * @return the kernels
+     */
+    public static PatchKernels getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Creates the vectorised kernels, falling back to the scalar kernels if VectorPatchKernels has not been compiled
+     * or the jdk.incubator.vector module is not available.
+     *
+     * @return the kernels
+     */
+    private static PatchKernels create() {
+        try {
+            return (PatchKernels) Class.forName(PatchKernels.class.getPackage().getName() + ".VectorPatchKernels")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new PatchKernels();
+        }
+    }
+
+    /**
+     * Returns the name of the implementation.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return "scalar";
+    }
+
+    /**
+     * Sums a range of an array.
+     *
+     * @param a      the array
+     * @param offset the start of the range
+     * @param length the length of the range
+     * @return the sum
+     */
+    public double sum(double[] a, int offset, int length) {
+        double sum = 0;
+        for (int i = offset; i < offset + length; i++) {
+            sum += a[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Sums the squares of a range of an array.
+     *
+     * @param a      the array
+     * @param offset the start of the range
+     * @param length the length of the range
+     * @return the sum of squares
+     */
+    public double sumOfSquares(double[] a, int offset, int length) {
+        double sum = 0;
+        for (int i = offset; i < offset + length; i++) {
+            sum += a[i] * a[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Multiplies a range of an array by a factor.
+     *
+     * @param a      the array
+     * @param offset the start of the range
+     * @param length the length of the range
+     * @param factor the factor
+     */
+    public void scale(double[] a, int offset, int length, double factor) {
+        for (int i = offset; i < offset + length; i++) {
+            a[i] *= factor;
+        }
+    }
+
+    /**
+     * Returns the index of the first element in a range of an array with the largest absolute value.
+     *
+     * @param a      the array
+     * @param offset the start of the range
+     * @param length the length of the range
+     * @return the index, relative to the start of the range
+     */
+    public int argMaxAbs(double[] a, int offset, int length) {
+        int maxIndex = 0;
+        double max = Math.abs(a[offset]);
+        for (int i = 1; i < length; i++) {
+            double test = Math.abs(a[offset + i]);
+            if (test > max) {
+                max = test;
+                maxIndex = i;
+            }
+        }
+        return maxIndex;
+    }
+
+    /**
+     * Calculates the dot product of ranges of two arrays of 8-bit integers.
+     *
+     * @param a       the first array
+     * @param aOffset the start of the range in the first array
+     * @param b       the second array
+     * @param bOffset the start of the range in the second array
+     * @param length  the length of the ranges
+     * @return the dot product
+     */
+    public int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        int sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    /**
+     * Adds the positive part of a range of an array to a range of another array.
+     *
+     * @param src       the array to add
+     * @param srcOffset the start of the range to add
+     * @param dst       the array to add to
+     * @param dstOffset the start of the range to add to
+     * @param length    the length of the ranges
+     */
+    public void addPositivePart(double[] src, int srcOffset, double[] dst, int dstOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] += Math.max(0, src[srcOffset + i]);
+        }
+    }
+
+    /**
+     * Normalises a range of an array to unit length, unless it is all zeros.
+     *
+     * @param a      the array
+     * @param offset the start of the range
+     * @param length the length of the range
+     */
+    public void normalise(double[] a, int offset, int length) {
+        double norm = Math.sqrt(sumOfSquares(a, offset, length));
+        if (norm != 0) {
+            scale(a, offset, length, 1 / norm);
+        }
+    }
+
+    /**
+     * Normalises the values of a patch stored in a range of an array to mean 0 standard deviation ~1.
+     *
+     * @param a      the array
+     * @param offset the start of the patch
+     * @param length the number of values in the patch
+     */
+    public void normalisePatch(double[] a, int offset, int length) {
+        double mean = sum(a, offset, length) / length;
+        for (int i = offset; i < offset + length; i++) {
+            a[i] -= mean;
+        }
+        scale(a, offset, length, 1.0 / Math.sqrt(sumOfSquares(a, offset, length) / length + 10));
+    }
+}
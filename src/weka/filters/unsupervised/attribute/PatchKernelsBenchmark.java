@@ -0,0 +1,160 @@
+package weka.filters.unsupervised.attribute;
+
+import java.util.Random;
+
+/**
+ * Compares the scalar kernels in PatchKernels with the vectorised kernels on the same inputs. Compile src-vector
+ * and run with --add-modules jdk.incubator.vector so that the vectorised kernels are available.
+ * <p>
+ * Usage: PatchKernelsBenchmark [K] [patch size] [columns] [repetitions]
+ */
+public class PatchKernelsBenchmark {
+
+    /**
+     * A kernel applied to all the columns of the input.
+     */
+    protected interface Kernel {
+
+        /**
+         * Applies a kernel to all the columns.
+         *
+         * @param kernels the kernels to use
+         * @param data    the columns, stored consecutively
+         * @param out     array to accumulate results in
+         * @return a value depending on the result, so that the computation is not optimised away
+         */
+        double apply(PatchKernels kernels, double[] data, double[] out);
+    }
+
+    /**
+     * Times a kernel and checks that both implementations give the same result.
+     *
+     * @param name        the name of the kernel
+     * @param scalar      the scalar kernels
+     * @param vector      the vectorised kernels
+     * @param input       the input columns
+     * @param outLength   the length of the array to accumulate results in
+     * @param repetitions number of times to apply the kernel
+     * @param kernel      the kernel
+     */
+    protected static void run(String name, PatchKernels scalar, PatchKernels vector, double[] input, int outLength,
+                              int repetitions, Kernel kernel) {
+        // Compare results on the same input
+        double[] scalarData = input.clone();
+        double[] vectorData = input.clone();
+        double[] scalarOut = new double[outLength];
+        double[] vectorOut = new double[outLength];
+        double scalarResult = kernel.apply(scalar, scalarData, scalarOut);
+        double vectorResult = kernel.apply(vector, vectorData, vectorOut);
+        double maxDiff = Math.abs(scalarResult - vectorResult);
+        for (int i = 0; i < input.length; i++) {
+            maxDiff = Math.max(maxDiff, Math.abs(scalarData[i] - vectorData[i]));
+        }
+        for (int i = 0; i < outLength; i++) {
+            maxDiff = Math.max(maxDiff, Math.abs(scalarOut[i] - vectorOut[i]));
+        }
+
+        System.out.printf("%-20s scalar %10.3f ms   %s %10.3f ms   max difference %.3g%n", name,
+                time(scalar, input, outLength, repetitions, kernel), vector.getName(),
+                time(vector, input, outLength, repetitions, kernel), maxDiff);
+    }
+
+    /**
+     * Returns the average time taken to apply a kernel, after warming up.
+     *
+     * @param kernels     the kernels to use
+     * @param input       the input columns
+     * @param outLength   the length of the array to accumulate results in
+     * @param repetitions number of times to apply the kernel
+     * @param kernel      the kernel
+     * @return the average time in milliseconds
+     */
+    protected static double time(PatchKernels kernels, double[] input, int outLength, int repetitions, Kernel kernel) {
+        double[] data = new double[input.length];
+        double[] out = new double[outLength];
+        double sink = 0;
+        for (int i = 0; i < repetitions; i++) {
+            System.arraycopy(input, 0, data, 0, input.length);
+            sink += kernel.apply(kernels, data, out);
+        }
+        long total = 0;
+        for (int i = 0; i < repetitions; i++) {
+            System.arraycopy(input, 0, data, 0, input.length);
+            long start = System.nanoTime();
+            sink += kernel.apply(kernels, data, out);
+            total += System.nanoTime() - start;
+        }
+        if (sink == 42) {
+            System.out.print("");
+        }
+        return total / 1e6 / repetitions;
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args K, patch size, number of columns and number of repetitions
+     */
+    public static void main(String[] args) {
+        int K = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        int cropSize = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        int numColumns = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+        int repetitions = (args.length > 3) ? Integer.parseInt(args[3]) : 50;
+        int numPatchValues = cropSize * cropSize * 3;
+
+        PatchKernels scalar = new PatchKernels();
+        PatchKernels vector = PatchKernels.getInstance();
+        if (vector.getClass() == PatchKernels.class) {
+            System.out.println("Vectorised kernels not available, compile src-vector and run with --add-modules jdk.incubator.vector.");
+        }
+
+        Random rand = new Random(0);
+        double[] responses = new double[K * numColumns];
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = rand.nextGaussian();
+        }
+        double[] patches = new double[numPatchValues * numColumns];
+        for (int i = 0; i < patches.length; i++) {
+            patches[i] = rand.nextInt(256);
+        }
+
+        System.out.println("K = " + K + ", patch values = " + numPatchValues + ", columns = " + numColumns);
+        run("argMaxAbs", scalar, vector, responses, 0, repetitions, (kernels, data, out) -> {
+            double sum = 0;
+            for (int c = 0; c < numColumns; c++) {
+                sum += kernels.argMaxAbs(data, c * K, K);
+            }
+            return sum;
+        });
+        run("normalise", scalar, vector, responses, 0, repetitions, (kernels, data, out) -> {
+            for (int c = 0; c < numColumns; c++) {
+                kernels.normalise(data, c * K, K);
+            }
+            return data[0];
+        });
+        run("normalisePatch", scalar, vector, patches, 0, repetitions, (kernels, data, out) -> {
+            for (int c = 0; c < numColumns; c++) {
+                kernels.normalisePatch(data, c * numPatchValues, numPatchValues);
+            }
+            return data[0];
+        });
+        run("addPositivePart", scalar, vector, responses, K, repetitions, (kernels, data, out) -> {
+            for (int c = 0; c < numColumns; c++) {
+                kernels.addPositivePart(data, c * K, out, 0, K);
+            }
+            return out[0];
+        });
+
+        byte[] quantised = new byte[patches.length];
+        for (int i = 0; i < quantised.length; i++) {
+            quantised[i] = (byte) (rand.nextInt(255) - 127);
+        }
+        run("dot (8-bit)", scalar, vector, patches, 0, repetitions, (kernels, data, out) -> {
+            double sum = 0;
+            for (int c = 1; c < numColumns; c++) {
+                sum += kernels.dot(quantised, (c - 1) * numPatchValues, quantised, c * numPatchValues, numPatchValues);
+            }
+            return sum;
+        });
+    }
+}